@@ -15,12 +15,19 @@
  along with this program; if not, write to the Free Software
  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -28,8 +35,8 @@
  * http://www.daemonology.net/bsdiff/ ) and distributed under BSD license.
  * 
  * <p>
- * Running this on large files will probably require an increae of the default
- * maximum heap size (use java -Xmx200m)
+ * The suffix array of the old file is built with {@link SuffixSorter} (SA-IS),
+ * which needs about 4 bytes per input byte instead of the 8 used by qsufsort.
  * </p>
  * 
  * @author Joe Desbonnet, joe@galway.net
@@ -41,181 +48,6 @@ private static final int min(int x, int y) {
     return x < y ? x : y;
   }
 
-  private final static void split(int[] I, int[] V, int start, int len, int h) {
-
-    int i, j, k, x, tmp, jj, kk;
-
-    if (len < 16) {
-      for (k = start; k < start + len; k += j) {
-        j = 1;
-        x = V[I[k] + h];
-        for (i = 1; k + i < start + len; i++) {
-          if (V[I[k + i] + h] < x) {
-            x = V[I[k + i] + h];
-            j = 0;
-          }
-
-          if (V[I[k + i] + h] == x) {
-            tmp = I[k + j];
-            I[k + j] = I[k + i];
-            I[k + i] = tmp;
-            j++;
-          }
-
-        }
-
-        for (i = 0; i < j; i++)
-          V[I[k + i]] = k + j - 1;
-        if (j == 1)
-          I[k] = -1;
-      }
-
-      return;
-    }
-
-    x = V[I[start + len / 2] + h];
-    jj = 0;
-    kk = 0;
-    for (i = start; i < start + len; i++) {
-      if (V[I[i] + h] < x)
-        jj++;
-      if (V[I[i] + h] == x)
-        kk++;
-    }
-
-    jj += start;
-    kk += jj;
-
-    i = start;
-    j = 0;
-    k = 0;
-    while (i < jj) {
-      if (V[I[i] + h] < x) {
-        i++;
-      } else if (V[I[i] + h] == x) {
-        tmp = I[i];
-        I[i] = I[jj + j];
-        I[jj + j] = tmp;
-        j++;
-      } else {
-        tmp = I[i];
-        I[i] = I[kk + k];
-        I[kk + k] = tmp;
-        k++;
-      }
-
-    }
-
-    while (jj + j < kk) {
-      if (V[I[jj + j] + h] == x) {
-        j++;
-      } else {
-        tmp = I[jj + j];
-        I[jj + j] = I[kk + k];
-        I[kk + k] = tmp;
-        k++;
-      }
-
-    }
-
-    if (jj > start) {
-      split(I, V, start, jj - start, h);
-    }
-
-    for (i = 0; i < kk - jj; i++) {
-      V[I[jj + i]] = kk - 1;
-    }
-
-    if (jj == kk - 1) {
-      I[jj] = -1;
-    }
-
-    if (start + len > kk) {
-      split(I, V, kk, start + len - kk, h);
-    }
-
-  }
-
-  /**
-   * Fast suffix sporting. Larsson and Sadakane's qsufsort algorithm. See
-   * http://www.cs.lth.se/Research/Algorithms/Papers/jesper5.ps
-   * 
-   * @param I
-   * @param V
-   * @param oldBuf
-   */
-  private static void qsufsort(int[] I, int[] V, byte[] oldBuf) {
-
-    int oldsize = oldBuf.length;
-
-    int[] buckets = new int[256];
-    int i, h, len;
-
-    for (i = 0; i < 256; i++) {
-      buckets[i] = 0;
-    }
-
-    for (i = 0; i < oldsize; i++) {
-      buckets[oldBuf[i] & 0xff]++;
-    }
-
-    for (i = 1; i < 256; i++) {
-      buckets[i] += buckets[i - 1];
-    }
-
-    for (i = 255; i > 0; i--) {
-      buckets[i] = buckets[i - 1];
-    }
-
-    buckets[0] = 0;
-
-    for (i = 0; i < oldsize; i++) {
-      I[++buckets[oldBuf[i] & 0xff]] = i;
-    }
-
-    I[0] = oldsize;
-    for (i = 0; i < oldsize; i++) {
-      V[i] = buckets[oldBuf[i] & 0xff];
-    }
-    V[oldsize] = 0;
-
-    for (i = 1; i < 256; i++) {
-      if (buckets[i] == buckets[i - 1] + 1) {
-        I[buckets[i]] = -1;
-      }
-    }
-
-    I[0] = -1;
-
-    for (h = 1; I[0] != -(oldsize + 1); h += h) {
-      len = 0;
-      for (i = 0; i < oldsize + 1;) {
-        if (I[i] < 0) {
-          len -= I[i];
-          i -= I[i];
-        } else {
-          // if(len) I[i-len]=-len;
-          if (len != 0) {
-            I[i - len] = -len;
-          }
-          len = V[I[i]] + 1 - i;
-          split(I, V, i, len, h);
-          i += len;
-          len = 0;
-        }
-
-      }
-
-      if (len != 0) {
-        I[i - len] = -len;
-      }
-    }
-
-    for (i = 0; i < oldsize + 1; i++) {
-      I[V[i]] = i;
-    }
-  }
-
   /**
    * Count the number of bytes that match in oldBuf (starting at offset
    * oldOffset) and newBuf (starting at offset newOffset).
@@ -263,22 +95,51 @@ private final static int search(int[] I, byte[] oldBuf, byte[] newBuf, int newBu
   }
 
   public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOException {
+    bsdiff(oldFile, newFile, diffFile, Runtime.getRuntime().availableProcessors() > 1);
+  }
+
+  /**
+   * Creates a patch from oldFile to newFile. When parallel is set, the suffix
+   * array is built while the new file is read and the diff and extra blocks are
+   * compressed concurrently. The output is identical either way.
+   * 
+   * @param oldFile
+   * @param newFile
+   * @param diffFile
+   * @param parallel
+   * @throws IOException
+   */
+  public static void bsdiff(File oldFile, File newFile, File diffFile, boolean parallel) throws IOException {
+    ExecutorService executor = parallel ? Executors.newFixedThreadPool(2) : null;
+    try {
+      bsdiff(oldFile, newFile, diffFile, executor);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private static void bsdiff(File oldFile, File newFile, File diffFile, ExecutorService executor) throws IOException {
 
     int oldsize = (int) oldFile.length();
-    byte[] oldBuf = new byte[oldsize];
+    final byte[] oldBuf = new byte[oldsize];
 
     FileInputStream in = new FileInputStream(oldFile);
     Util.readFromStream(in, oldBuf, 0, oldsize);
     in.close();
 
-    int[] I = new int[oldsize + 1];
-    int[] V = new int[oldsize + 1];
-
-    qsufsort(I, V, oldBuf);
-
-    // free(V)
-    V = null;
-    System.gc();
+    Future<int[]> sorted = null;
+    int[] I = null;
+    if (executor != null) {
+      sorted = executor.submit(new Callable<int[]>() {
+        public int[] call() {
+          return SuffixSorter.sort(oldBuf);
+        }
+      });
+    } else {
+      I = SuffixSorter.sort(oldBuf);
+    }
 
     int newsize = (int) newFile.length();
     byte[] newBuf = new byte[newsize];
@@ -286,6 +147,44 @@ public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOEx
     Util.readFromStream(in, newBuf, 0, newsize);
     in.close();
 
+    if (sorted != null) {
+      I = await(sorted);
+    }
+
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(diffFile));
+    try {
+      bsdiff(oldBuf, I, newBuf, out, executor);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Creates a patch from oldBuf to newBuf in memory.
+   * 
+   * @param oldBuf
+   * @param newBuf
+   * @return the patch, in the same format as the file based variant
+   * @throws IOException
+   */
+  public static byte[] bsdiff(byte[] oldBuf, byte[] newBuf) throws IOException {
+    return bsdiff(oldBuf, SuffixSorter.sort(oldBuf), newBuf);
+  }
+
+  /**
+   * Creates a patch from oldBuf to newBuf using a suffix array of oldBuf that
+   * was already built, in the layout {@link SuffixSorter#sort} returns.
+   */
+  static byte[] bsdiff(byte[] oldBuf, int[] I, byte[] newBuf) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bsdiff(oldBuf, I, newBuf, out, null);
+    return out.toByteArray();
+  }
+
+  private static void bsdiff(byte[] oldBuf, int[] I, byte[] newBuf, OutputStream out, ExecutorService executor) throws IOException {
+    int oldsize = oldBuf.length;
+    int newsize = newBuf.length;
+
     // diff block
     int dblen = 0;
     byte[] db = new byte[newsize];
@@ -311,16 +210,8 @@ public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOEx
      * comprises 3 x 32 bit integers. The ctrlBlock is not compressed.
      */
 
-    DataOutputStream diffOut = new DataOutputStream(new FileOutputStream(diffFile));
-
-    /*
-     * Write as much of header as we have now. Size of ctrlBlock and diffBlock
-     * must be filled in later.
-     */
-    diffOut.write("jbdiff40".getBytes("US-ASCII"));
-    diffOut.writeLong(-1); // place holder for ctrlBlockLen
-    diffOut.writeLong(-1); // place holder for diffBlockLen
-    diffOut.writeLong(newsize);
+    ByteArrayOutputStream ctrlBlock = new ByteArrayOutputStream();
+    DataOutputStream ctrlOut = new DataOutputStream(ctrlBlock);
 
     int oldscore, scsc;
 
@@ -423,9 +314,9 @@ public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOEx
         /*
          * Write control block entry (3 x int)
          */
-        diffOut.writeInt(lenf);
-        diffOut.writeInt((scan - lenb) - (lastscan + lenf));
-        diffOut.writeInt((pos.value - lenb) - (lastpos + lenf));
+        ctrlOut.writeInt(lenf);
+        ctrlOut.writeInt((scan - lenb) - (lastscan + lenf));
+        ctrlOut.writeInt((pos.value - lenb) - (lastpos + lenf));
         ctrlBlockLen += 12;
 
         lastscan = scan - lenb;
@@ -434,34 +325,63 @@ public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOEx
       } // end if
     } // end while loop
 
-    GZIPOutputStream gzOut;
-
     /*
-     * Write diff block
+     * Write diff block and extra block
      */
-    gzOut = new GZIPOutputStream(diffOut);
-    gzOut.write(db, 0, dblen);
-    gzOut.finish();
-    int diffBlockLen = diffOut.size() - ctrlBlockLen - 32;
-    // System.err.println ("diffBlockLen=" + diffBlockLen);
+    byte[] diffBlock, extraBlock;
+    if (executor != null) {
+      final byte[] diffBuf = db;
+      final int diffLen = dblen;
+      Future<byte[]> diffFuture = executor.submit(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          return gzip(diffBuf, diffLen);
+        }
+      });
+      extraBlock = gzip(eb, eblen);
+      diffBlock = await(diffFuture);
+    } else {
+      diffBlock = gzip(db, dblen);
+      extraBlock = gzip(eb, eblen);
+    }
 
-    /*
-     * Write extra block
-     */
-    gzOut = new GZIPOutputStream(diffOut);
-    gzOut.write(eb, 0, eblen);
+    DataOutputStream diffOut = new DataOutputStream(out);
+    diffOut.write("jbdiff40".getBytes("US-ASCII"));
+    diffOut.writeLong(ctrlBlockLen);
+    diffOut.writeLong(diffBlock.length);
+    diffOut.writeLong(newsize);
+    ctrlBlock.writeTo(diffOut);
+    diffOut.write(diffBlock);
+    diffOut.write(extraBlock);
+    diffOut.flush();
+  }
+
+  private static byte[] gzip(byte[] buf, int len) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+    GZIPOutputStream gzOut = new GZIPOutputStream(out);
+    gzOut.write(buf, 0, len);
     gzOut.finish();
-    diffOut.close();
+    return out.toByteArray();
+  }
 
-    /*
-     * Write missing header info. Need to reopen the file with RandomAccessFile
-     * for this.
-     */
-    RandomAccessFile diff = new RandomAccessFile(diffFile, "rw");
-    diff.seek(8);
-    diff.writeLong(ctrlBlockLen); // ctrlBlockLen (compressed) @offset 8
-    diff.writeLong(diffBlockLen); // diffBlockLen (compressed) @offset 16
-    diff.close();
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while creating patch");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
   }
 
   /**
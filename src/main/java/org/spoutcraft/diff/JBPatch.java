@@ -15,13 +15,27 @@
  along with this program; if not, write to the Free Software
  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.codec.binary.Hex;
+
 /**
  * Java Binary patcher (based on bspatch by Colin Percival)
  * 
@@ -29,6 +43,8 @@
  */
 public class JBPatch {
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   /**
    * Run JBPatch from the command line. Params: oldfile newfile patchfile.
    * newfile will be created.
@@ -49,113 +65,214 @@ public static void main(String[] arg) throws IOException {
     bspatch(oldFile, newFile, diffFile);
   }
 
-  @SuppressWarnings("resource")
-  public static void bspatch(File oldFile, File newFile, File diffFile) throws IOException {
-
-    int oldpos, newpos;
-
-    DataInputStream diffIn = new DataInputStream(new FileInputStream(diffFile));
+  /**
+   * Applies a patch created by JBDiff. The old file is memory mapped, the
+   * ctrl, diff and extra blocks are read from a single channel with positional
+   * reads and the new file is streamed to disk, so memory use does not grow
+   * with the size of the files.
+   * 
+   * @param oldFile
+   * @param newFile
+   * @param diffFile
+   * @return MD5 of the new file
+   * @throws IOException
+   */
+  public static String bspatch(File oldFile, File newFile, File diffFile) throws IOException {
+    RandomAccessFile diff = new RandomAccessFile(diffFile, "r");
+    RandomAccessFile old = new RandomAccessFile(oldFile, "r");
+    OutputStream out = null;
+    boolean complete = false;
+    try {
+      FileChannel diffChannel = diff.getChannel();
+      DataInputStream header = new DataInputStream(new ChannelInputStream(diffChannel, 0, 32));
+      header.readLong();
 
-    diffIn.readLong();
+      // ctrlBlockLen after gzip compression at heater offset 8 (length 8
+      // bytes)
+      long ctrlBlockLen = header.readLong();
 
-    // ctrlBlockLen after gzip compression at heater offset 8 (length 8
-    // bytes)
-    long ctrlBlockLen = diffIn.readLong();
+      // diffBlockLen after gzip compression at header offset 16 (length 8
+      // bytes)
+      long diffBlockLen = header.readLong();
 
-    // diffBlockLen after gzip compression at header offset 16 (length 8
-    // bytes)
-    long diffBlockLen = diffIn.readLong();
+      // size of new file at header offset 24 (length 8 bytes)
+      long newsize = header.readLong();
 
-    // size of new file at header offset 24 (length 8 bytes)
-    int newsize = (int) diffIn.readLong();
+      DataInputStream ctrlIn = new DataInputStream(new ChannelInputStream(diffChannel, 32, ctrlBlockLen));
+      GZIPInputStream diffBlockIn = new GZIPInputStream(new ChannelInputStream(diffChannel, 32 + ctrlBlockLen, diffBlockLen), BUFFER_SIZE);
+      long extraOffset = 32 + ctrlBlockLen + diffBlockLen;
+      GZIPInputStream extraBlockIn = new GZIPInputStream(new ChannelInputStream(diffChannel, extraOffset, diffChannel.size() - extraOffset), BUFFER_SIZE);
 
-    /*
-     * System.err.println ("newsize=" + newsize); System.err.println
-     * ("ctrlBlockLen=" + ctrlBlockLen); System.err.println ("diffBlockLen=" +
-     * diffBlockLen); System.err.println ("newsize=" + newsize);
-     */
+      FileChannel oldChannel = old.getChannel();
+      long oldsize = oldChannel.size();
+      MappedByteBuffer oldBuf = oldChannel.map(FileChannel.MapMode.READ_ONLY, 0, oldsize);
 
-    FileInputStream in;
-    in = new FileInputStream(diffFile);
-    in.skip(ctrlBlockLen + 32);
-    GZIPInputStream diffBlockIn = new GZIPInputStream(in);
+      MessageDigest md5 = getMD5Digest();
+      out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE), md5);
+      bspatch(oldBuf, ctrlIn, diffBlockIn, extraBlockIn, newsize, out);
 
-    in = new FileInputStream(diffFile);
-    in.skip(diffBlockLen + ctrlBlockLen + 32);
-    GZIPInputStream extraBlockIn = new GZIPInputStream(in);
+      out.close();
+      complete = true;
+      return Hex.encodeHexString(md5.digest());
+    } finally {
+      if (out != null && !complete) {
+        try {
+          out.close();
+        } catch (IOException ignore) {
+        }
+        newFile.delete();
+      }
+      old.close();
+      diff.close();
+    }
+  }
 
-    /*
-     * Read in old file (file to be patched) to oldBuf
-     */
-    int oldsize = (int) oldFile.length();
-    byte[] oldBuf = new byte[oldsize + 1];
-    FileInputStream oldIn = new FileInputStream(oldFile);
-    Util.readFromStream(oldIn, oldBuf, 0, oldsize);
-    oldIn.close();
+  /**
+   * Applies a patch created by JBDiff in memory.
+   * 
+   * @param oldBuf
+   * @param patch
+   * @return the new contents
+   * @throws IOException
+   */
+  public static byte[] bspatch(byte[] oldBuf, byte[] patch) throws IOException {
+    DataInputStream header = new DataInputStream(new ByteArrayInputStream(patch, 0, 32));
+    header.readLong();
+    long ctrlBlockLen = header.readLong();
+    long diffBlockLen = header.readLong();
+    long newsize = header.readLong();
+    long extraOffset = 32 + ctrlBlockLen + diffBlockLen;
+    if (ctrlBlockLen < 0 || diffBlockLen < 0 || newsize < 0 || newsize > Integer.MAX_VALUE || extraOffset > patch.length) {
+      throw new IOException("Corrupt patch");
+    }
 
-    byte[] newBuf = new byte[newsize + 1];
+    DataInputStream ctrlIn = new DataInputStream(new ByteArrayInputStream(patch, 32, (int) ctrlBlockLen));
+    GZIPInputStream diffBlockIn = new GZIPInputStream(new ByteArrayInputStream(patch, 32 + (int) ctrlBlockLen, (int) diffBlockLen), BUFFER_SIZE);
+    GZIPInputStream extraBlockIn = new GZIPInputStream(new ByteArrayInputStream(patch, (int) extraOffset, patch.length - (int) extraOffset), BUFFER_SIZE);
 
-    try {
-      oldpos = 0;
-      newpos = 0;
-      int[] ctrl = new int[3];
-      while (newpos < newsize) {
-
-        for (int i = 0; i <= 2; i++) {
-          ctrl[i] = diffIn.readInt();
-          // System.err.println ("  ctrl[" + i + "]=" + ctrl[i]);
-        }
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) newsize);
+    bspatch(ByteBuffer.wrap(oldBuf), ctrlIn, diffBlockIn, extraBlockIn, newsize, out);
+    return out.toByteArray();
+  }
 
-        if (newpos + ctrl[0] > newsize) {
-          System.err.println("Corrupt patch\n");
-          return;
-        }
+  private static void bspatch(ByteBuffer oldBuf, DataInputStream ctrlIn, InputStream diffBlockIn, InputStream extraBlockIn, long newsize, OutputStream out) throws IOException {
+    long oldsize = oldBuf.limit();
+    byte[] buf = new byte[BUFFER_SIZE];
 
-        /*
-         * Read ctrl[0] bytes from diffBlock stream
-         */
+    long oldpos = 0;
+    long newpos = 0;
+    while (newpos < newsize) {
+      int diffLen = ctrlIn.readInt();
+      int extraLen = ctrlIn.readInt();
+      int seek = ctrlIn.readInt();
 
-        if (!Util.readFromStream(diffBlockIn, newBuf, newpos, ctrl[0])) {
-          System.err.println("error reading from extraIn");
-          return;
-        }
+      if (diffLen < 0 || newpos + diffLen > newsize) {
+        throw new IOException("Corrupt patch");
+      }
 
-        for (int i = 0; i < ctrl[0]; i++) {
-          if ((oldpos + i >= 0) && (oldpos + i < oldsize)) {
-            newBuf[newpos + i] += oldBuf[oldpos + i];
+      /*
+       * Read diffLen bytes from diffBlock stream and add the old bytes to them
+       */
+      long remaining = diffLen;
+      while (remaining > 0) {
+        int len = (int) Math.min(buf.length, remaining);
+        readFully(diffBlockIn, buf, len);
+        for (int i = 0; i < len; i++) {
+          long pos = oldpos + i;
+          if (pos >= 0 && pos < oldsize) {
+            buf[i] += oldBuf.get((int) pos);
           }
         }
+        out.write(buf, 0, len);
+        oldpos += len;
+        remaining -= len;
+      }
+      newpos += diffLen;
 
-        newpos += ctrl[0];
-        oldpos += ctrl[0];
+      if (extraLen < 0 || newpos + extraLen > newsize) {
+        throw new IOException("Corrupt patch");
+      }
 
-        if (newpos + ctrl[1] > newsize) {
-          System.err.println("Corrupt patch");
-          return;
-        }
+      remaining = extraLen;
+      while (remaining > 0) {
+        int len = (int) Math.min(buf.length, remaining);
+        readFully(extraBlockIn, buf, len);
+        out.write(buf, 0, len);
+        remaining -= len;
+      }
+      newpos += extraLen;
+      oldpos += seek;
+    }
+  }
 
-        if (!Util.readFromStream(extraBlockIn, newBuf, newpos, ctrl[1])) {
-          System.err.println("error reading from extraIn");
-          return;
-        }
+  private static MessageDigest getMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
 
-        newpos += ctrl[1];
-        oldpos += ctrl[2];
-      }
+  private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+    if (!Util.readFromStream(in, buf, 0, len)) {
+      throw new EOFException("Unexpected end of patch");
+    }
+  }
 
-      // TODO: Check if at end of ctrlIn
-      // TODO: Check if at the end of diffIn
-      // TODO: Check if at the end of extraIn
+  /**
+   * Reads a region of a file channel with positional reads, so several
+   * streams can share one channel.
+   */
+  private static class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private final ByteBuffer  buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long              position;
+    private final long        end;
+
+    private ChannelInputStream(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+      buffer.limit(0);
+    }
 
-    } finally {
-      diffBlockIn.close();
-      extraBlockIn.close();
-      diffIn.close();
-      in.close();
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
     }
 
-    FileOutputStream out = new FileOutputStream(newFile);
-    out.write(newBuf, 0, newBuf.length - 1);
-    out.close();
+    private boolean fill() throws IOException {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+      if (position >= end) {
+        return false;
+      }
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = channel.read(buffer, position);
+      buffer.flip();
+      if (read <= 0) {
+        return false;
+      }
+      position += read;
+      return true;
+    }
   }
 }
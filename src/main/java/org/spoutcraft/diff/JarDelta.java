@@ -0,0 +1,536 @@
+package org.spoutcraft.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Hex;
+import org.spoutcraft.launcher.zip.ZipDirectory;
+
+/**
+ * Entry level delta patches for jar files. Instead of diffing the compressed
+ * bytes of the whole jar, every entry of the new jar is encoded on its own:
+ * unchanged entries are copied from the old jar, changed entries are diffed on
+ * their decompressed contents and recompressed on apply, and new entries are
+ * stored whole. Local headers, gaps and the central directory are kept
+ * verbatim, so the rebuilt jar is byte for byte identical to the new jar.
+ *
+ * <p>
+ * A patch consists of the magic "jdelta01", the length of the new jar (8
+ * bytes), the length of the gzipped index (4 bytes), the index and then the
+ * payloads of all entries.
+ * </p>
+ */
+public class JarDelta {
+
+  public static final String  MAGIC        = "jdelta01";
+
+  /** The compressed data is identical to an entry of the old jar */
+  private static final byte   COPY         = 0;
+  /** bsdiff of the decompressed contents, deflated again on apply */
+  private static final byte   DEFLATE_DIFF = 1;
+  /** bsdiff of the compressed data */
+  private static final byte   RAW_DIFF     = 2;
+  /** The compressed data is stored in the patch */
+  private static final byte   WHOLE        = 3;
+
+  private static final int    HEADER_SIZE  = 20;
+  private static final int    CENTRAL_SIG  = 0x02014b50;
+  private static final int    BUFFER_SIZE  = 64 * 1024;
+  private static final int[]  LEVELS       = { 6, 9, 1, 2, 3, 4, 5, 7, 8 };
+
+  /**
+   * Applies either a jar delta or a plain JBDiff patch, depending on the magic
+   * of the patch file.
+   *
+   * @param oldFile
+   * @param newFile
+   * @param patchFile
+   * @return MD5 of the new file
+   * @throws IOException
+   */
+  public static String apply(File oldFile, File newFile, File patchFile) throws IOException {
+    if (isJarDelta(patchFile)) {
+      return patch(oldFile, newFile, patchFile);
+    }
+    return JBPatch.bspatch(oldFile, newFile, patchFile);
+  }
+
+  public static boolean isJarDelta(File patchFile) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(patchFile, "r");
+    try {
+      if (raf.length() < MAGIC.length()) {
+        return false;
+      }
+      byte[] magic = new byte[MAGIC.length()];
+      raf.readFully(magic);
+      return MAGIC.equals(new String(magic, "US-ASCII"));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Creates a jar delta that turns oldJar into newJar.
+   *
+   * @param oldJar
+   * @param newJar
+   * @param patchFile
+   * @throws IOException
+   */
+  public static void diff(File oldJar, File newJar, File patchFile) throws IOException {
+    RandomAccessFile oldRaf = new RandomAccessFile(oldJar, "r");
+    RandomAccessFile newRaf = new RandomAccessFile(newJar, "r");
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      final FileChannel oldChannel = oldRaf.getChannel();
+      final FileChannel newChannel = newRaf.getChannel();
+      final ZipDirectory oldDir = new ZipDirectory(oldChannel);
+      ZipDirectory newDir = new ZipDirectory(newChannel);
+
+      List<ZipDirectory.Entry> entries = newDir.getEntries();
+      long cdOffset = newDir.getCentralDirectoryOffset();
+      long first = entries.isEmpty() ? cdOffset : entries.get(0).getLocalHeaderOffset();
+      byte[] head = ZipDirectory.readBytes(newChannel, 0, first);
+      byte[] tail = ZipDirectory.readBytes(newChannel, cdOffset, newDir.getLength() - cdOffset);
+
+      List<Future<Segment>> futures = new ArrayList<Future<Segment>>(entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+        final ZipDirectory.Entry entry = entries.get(i);
+        final long end = i + 1 < entries.size() ? entries.get(i + 1).getLocalHeaderOffset() : cdOffset;
+        futures.add(executor.submit(new Callable<Segment>() {
+          public Segment call() throws IOException {
+            return diffEntry(oldChannel, oldDir, newChannel, entry, end);
+          }
+        }));
+      }
+
+      ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+      DataOutputStream index = new DataOutputStream(new GZIPOutputStream(indexBytes));
+      writeBytes(index, head);
+      index.writeInt(entries.size());
+      List<Segment> segments = new ArrayList<Segment>(entries.size());
+      long payloadOffset = 0;
+      for (Future<Segment> future : futures) {
+        Segment segment = await(future);
+        segments.add(segment);
+        index.writeUTF(segment.name);
+        writeBytes(index, segment.prefix);
+        writeBytes(index, segment.suffix);
+        index.writeByte(segment.op);
+        index.writeUTF(segment.oldName == null ? "" : segment.oldName);
+        index.writeInt(segment.level);
+        index.writeLong(segment.dataLength);
+        index.writeLong(payloadOffset);
+        index.writeInt(segment.payload == null ? 0 : segment.payload.length);
+        payloadOffset += segment.payload == null ? 0 : segment.payload.length;
+      }
+      writeBytes(index, tail);
+      index.close();
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(patchFile), BUFFER_SIZE));
+      try {
+        out.write(MAGIC.getBytes("US-ASCII"));
+        out.writeLong(newDir.getLength());
+        out.writeInt(indexBytes.size());
+        indexBytes.writeTo(out);
+        for (Segment segment : segments) {
+          if (segment.payload != null) {
+            out.write(segment.payload);
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      executor.shutdownNow();
+      oldRaf.close();
+      newRaf.close();
+    }
+  }
+
+  private static Segment diffEntry(FileChannel oldChannel, ZipDirectory oldDir, FileChannel newChannel, ZipDirectory.Entry entry, long end) throws IOException {
+    long dataEnd = entry.getDataOffset() + entry.getCompressedSize();
+    if (end < dataEnd) {
+      throw new IOException("Unsupported zip layout at " + entry.getName());
+    }
+
+    Segment segment = new Segment();
+    segment.name = entry.getName();
+    segment.prefix = ZipDirectory.readBytes(newChannel, entry.getLocalHeaderOffset(), entry.getDataOffset() - entry.getLocalHeaderOffset());
+    segment.suffix = ZipDirectory.readBytes(newChannel, dataEnd, end - dataEnd);
+    segment.dataLength = entry.getCompressedSize();
+    byte[] raw = ZipDirectory.readBytes(newChannel, entry.getDataOffset(), entry.getCompressedSize());
+
+    ZipDirectory.Entry old = oldDir.getEntry(entry.getName());
+    byte[] oldRaw = null;
+    if (old != null) {
+      oldRaw = ZipDirectory.readBytes(oldChannel, old.getDataOffset(), old.getCompressedSize());
+      segment.oldName = old.getName();
+      if (old.getCrc() == entry.getCrc() && Arrays.equals(oldRaw, raw)) {
+        segment.op = COPY;
+        return segment;
+      }
+    }
+
+    if (old != null && entry.getMethod() == ZipDirectory.DEFLATED && (old.getMethod() == ZipDirectory.DEFLATED || old.getMethod() == ZipDirectory.STORED)) {
+      byte[] content = inflate(raw, entry.getSize());
+      int level = findLevel(content, raw);
+      if (level >= 0) {
+        byte[] oldContent = old.getMethod() == ZipDirectory.DEFLATED ? inflate(oldRaw, old.getSize()) : oldRaw;
+        segment.op = DEFLATE_DIFF;
+        segment.level = level;
+        segment.payload = JBDiff.bsdiff(oldContent, content);
+      }
+    }
+    if (segment.payload == null && old != null) {
+      segment.op = RAW_DIFF;
+      segment.payload = JBDiff.bsdiff(oldRaw, raw);
+    }
+    if (segment.payload == null || segment.payload.length >= raw.length) {
+      segment.op = WHOLE;
+      segment.oldName = null;
+      segment.level = 0;
+      segment.payload = raw;
+    }
+    return segment;
+  }
+
+  /**
+   * Finds a deflate level that reproduces the compressed data exactly, or -1
+   * if the entry was written by a different compressor.
+   */
+  private static int findLevel(byte[] content, byte[] raw) {
+    for (int level : LEVELS) {
+      if (Arrays.equals(deflate(content, level), raw)) {
+        return level;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Rebuilds newJar from oldJar and a patch created by
+   * {@link #diff(File, File, File)}. Entries are rebuilt in parallel and
+   * written straight to their final position in the new jar.
+   *
+   * @param oldJar
+   * @param newJar
+   * @param patchFile
+   * @return MD5 of the new jar
+   * @throws IOException
+   */
+  public static String patch(File oldJar, File newJar, File patchFile) throws IOException {
+    RandomAccessFile patchRaf = new RandomAccessFile(patchFile, "r");
+    RandomAccessFile oldRaf = new RandomAccessFile(oldJar, "r");
+    RandomAccessFile newRaf = null;
+    ExecutorService executor = null;
+    boolean complete = false;
+    try {
+      final FileChannel patchChannel = patchRaf.getChannel();
+      DataInputStream header = new DataInputStream(new ByteArrayInputStream(ZipDirectory.readBytes(patchChannel, 0, HEADER_SIZE)));
+      byte[] magic = new byte[MAGIC.length()];
+      header.readFully(magic);
+      if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+        throw new IOException("Not a jar delta");
+      }
+      long newsize = header.readLong();
+      int indexLen = header.readInt();
+      final long payloadBase = HEADER_SIZE + (long) indexLen;
+
+      DataInputStream index = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(ZipDirectory.readBytes(patchChannel, HEADER_SIZE, indexLen)), BUFFER_SIZE));
+      byte[] head = readBytes(index);
+      int count = index.readInt();
+      List<Segment> segments = new ArrayList<Segment>(count);
+      long position = head.length;
+      for (int i = 0; i < count; i++) {
+        Segment segment = new Segment();
+        segment.name = index.readUTF();
+        segment.prefix = readBytes(index);
+        segment.suffix = readBytes(index);
+        segment.op = index.readByte();
+        segment.oldName = index.readUTF();
+        segment.level = index.readInt();
+        segment.dataLength = index.readLong();
+        segment.payloadOffset = index.readLong();
+        segment.payloadLength = index.readInt();
+        segment.outputOffset = position;
+        position += segment.prefix.length + segment.dataLength + segment.suffix.length;
+        segments.add(segment);
+      }
+      byte[] tail = readBytes(index);
+      if (position + tail.length != newsize) {
+        throw new IOException("Corrupt patch");
+      }
+
+      final FileChannel oldChannel = oldRaf.getChannel();
+      final ZipDirectory oldDir = new ZipDirectory(oldChannel);
+      final Map<String, Long> crcs = readCrcs(tail);
+
+      newRaf = new RandomAccessFile(newJar, "rw");
+      newRaf.setLength(0);
+      newRaf.setLength(newsize);
+      final FileChannel newChannel = newRaf.getChannel();
+      write(newChannel, head, 0);
+      write(newChannel, tail, position);
+
+      executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+      List<Future<Void>> futures = new ArrayList<Future<Void>>(count);
+      for (final Segment segment : segments) {
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            applySegment(oldChannel, oldDir, patchChannel, payloadBase, newChannel, crcs, segment);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        await(future);
+      }
+
+      MessageDigest md5 = getMD5Digest();
+      ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+      long pos = 0;
+      int read;
+      while ((read = newChannel.read(buf, pos)) > 0) {
+        pos += read;
+        buf.flip();
+        md5.update(buf);
+        buf.clear();
+      }
+      complete = true;
+      return Hex.encodeHexString(md5.digest());
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      patchRaf.close();
+      oldRaf.close();
+      if (newRaf != null) {
+        newRaf.close();
+      }
+      if (!complete) {
+        newJar.delete();
+      }
+    }
+  }
+
+  private static void applySegment(FileChannel oldChannel, ZipDirectory oldDir, FileChannel patchChannel, long payloadBase, FileChannel newChannel, Map<String, Long> crcs, Segment segment) throws IOException {
+    byte[] data;
+    if (segment.op == WHOLE) {
+      data = ZipDirectory.readBytes(patchChannel, payloadBase + segment.payloadOffset, segment.payloadLength);
+    } else {
+      ZipDirectory.Entry old = oldDir.getEntry(segment.oldName);
+      if (old == null) {
+        throw new IOException("Old jar is missing " + segment.oldName);
+      }
+      byte[] oldRaw = ZipDirectory.readBytes(oldChannel, old.getDataOffset(), old.getCompressedSize());
+      if (segment.op == COPY) {
+        data = oldRaw;
+      } else {
+        byte[] payload = ZipDirectory.readBytes(patchChannel, payloadBase + segment.payloadOffset, segment.payloadLength);
+        if (segment.op == RAW_DIFF) {
+          data = JBPatch.bspatch(oldRaw, payload);
+        } else if (segment.op == DEFLATE_DIFF) {
+          byte[] oldContent = old.getMethod() == ZipDirectory.DEFLATED ? inflate(oldRaw, old.getSize()) : oldRaw;
+          byte[] content = JBPatch.bspatch(oldContent, payload);
+          // Checked before deflating, so a bad entry fails here instead of
+          // only showing up in the MD5 of the whole jar
+          CRC32 crc = new CRC32();
+          crc.update(content);
+          Long expected = crcs.get(segment.name);
+          if (expected == null || expected.longValue() != crc.getValue()) {
+            throw new IOException("Patched entry " + segment.name + " does not match its CRC");
+          }
+          data = deflate(content, segment.level);
+        } else {
+          throw new IOException("Corrupt patch");
+        }
+      }
+    }
+    if (data.length != segment.dataLength) {
+      throw new IOException("Patched entry " + segment.name + " has the wrong size");
+    }
+
+    write(newChannel, segment.prefix, segment.outputOffset);
+    write(newChannel, data, segment.outputOffset + segment.prefix.length);
+    write(newChannel, segment.suffix, segment.outputOffset + segment.prefix.length + data.length);
+  }
+
+  /**
+   * Reads the CRC-32 of every entry from the central directory of the new jar.
+   */
+  private static Map<String, Long> readCrcs(byte[] tail) throws IOException {
+    Map<String, Long> crcs = new HashMap<String, Long>();
+    ByteBuffer cd = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+    int pos = 0;
+    while (pos + 46 <= tail.length && cd.getInt(pos) == CENTRAL_SIG) {
+      int flags = cd.getShort(pos + 8) & 0xffff;
+      long crc = cd.getInt(pos + 16) & 0xffffffffL;
+      int nameLen = cd.getShort(pos + 28) & 0xffff;
+      int extraLen = cd.getShort(pos + 30) & 0xffff;
+      int commentLen = cd.getShort(pos + 32) & 0xffff;
+      if (pos + 46 + nameLen > tail.length) {
+        throw new IOException("Corrupt patch");
+      }
+      String name = new String(tail, pos + 46, nameLen, (flags & 0x800) != 0 ? "UTF-8" : "Cp437");
+      if (!crcs.containsKey(name)) {
+        crcs.put(name, crc);
+      }
+      pos += 46 + nameLen + extraLen + commentLen;
+    }
+    return crcs;
+  }
+
+  private static byte[] inflate(byte[] raw, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Entry too large: " + size);
+    }
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(raw);
+      byte[] content = new byte[(int) size];
+      int len = 0;
+      while (!inflater.finished() && len < content.length) {
+        int n = inflater.inflate(content, len, content.length - len);
+        if (n == 0 && inflater.needsInput()) {
+          // nowrap inflaters may need a dummy byte to finish the stream
+          inflater.setInput(new byte[1]);
+        }
+        len += n;
+      }
+      if (len != content.length) {
+        throw new IOException("Entry inflated to the wrong size");
+      }
+      return content;
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] deflate(byte[] content, int level) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+      byte[] buf = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void write(FileChannel channel, byte[] bytes, long position) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) {
+      throw new IOException("Corrupt patch");
+    }
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static MessageDigest getMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Run JarDelta from the command line. Params: oldjar newjar patchfile. The
+   * patch file will be created.
+   *
+   * @param arg
+   * @throws IOException
+   */
+  public static void main(String[] arg) throws IOException {
+    if (arg.length != 3) {
+      System.err.println("usage example: java org.spoutcraft.diff.JarDelta oldjar newjar patchfile");
+      return;
+    }
+    diff(new File(arg[0]), new File(arg[1]), new File(arg[2]));
+  }
+
+  private static class Segment {
+    private String name;
+    private byte[] prefix;
+    private byte[] suffix;
+    private byte   op;
+    private String oldName;
+    private int    level;
+    private long   dataLength;
+    private byte[] payload;
+    private long   payloadOffset;
+    private int    payloadLength;
+    private long   outputOffset;
+  }
+}
@@ -0,0 +1,216 @@
+package org.spoutcraft.diff;
+
+/**
+ * Linear time suffix array construction using the SA-IS algorithm by Nong,
+ * Zhang and Chan ("Two Efficient Algorithms for Linear Suffix Array
+ * Construction", 2009).
+ * <p>
+ * The reduced problem is stored in the suffix array itself, so apart from the
+ * result only a bit per input byte and the bucket counts are allocated.
+ */
+public class SuffixSorter {
+
+  /**
+   * Sorts all suffixes of buf, treating bytes as unsigned.
+   * 
+   * @param buf
+   * @return array of buf.length + 1 entries, the first being the empty suffix
+   *         buf.length, followed by the start of every suffix in sorted order
+   */
+  public static int[] sort(byte[] buf) {
+    if (buf.length == 0) {
+      return new int[] { 0 };
+    }
+    int[] SA = new int[buf.length + 1];
+    sais(new ByteText(buf), SA, buf.length + 1, 256);
+    return SA;
+  }
+
+  private static abstract class Text {
+    abstract int get(int i);
+  }
+
+  /**
+   * Bytes shifted up by one with a virtual 0 sentinel after the last byte, so
+   * the sentinel is the unique smallest character.
+   */
+  private static class ByteText extends Text {
+    private final byte[] buf;
+
+    private ByteText(byte[] buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    int get(int i) {
+      return i == buf.length ? 0 : (buf[i] & 0xff) + 1;
+    }
+  }
+
+  private static class IntText extends Text {
+    private final int[] buf;
+    private final int   offset;
+
+    private IntText(int[] buf, int offset) {
+      this.buf = buf;
+      this.offset = offset;
+    }
+
+    @Override
+    int get(int i) {
+      return buf[offset + i];
+    }
+  }
+
+  private static boolean isLMS(long[] t, int i) {
+    return i > 0 && getType(t, i) && !getType(t, i - 1);
+  }
+
+  private static boolean getType(long[] t, int i) {
+    return (t[i >>> 6] & (1L << i)) != 0;
+  }
+
+  private static void setType(long[] t, int i, boolean sType) {
+    if (sType) {
+      t[i >>> 6] |= 1L << i;
+    } else {
+      t[i >>> 6] &= ~(1L << i);
+    }
+  }
+
+  private static void getBuckets(Text s, int[] bkt, int n, int K, boolean end) {
+    for (int i = 0; i <= K; i++) {
+      bkt[i] = 0;
+    }
+    for (int i = 0; i < n; i++) {
+      bkt[s.get(i)]++;
+    }
+    int sum = 0;
+    for (int i = 0; i <= K; i++) {
+      sum += bkt[i];
+      bkt[i] = end ? sum : sum - bkt[i];
+    }
+  }
+
+  private static void induceL(long[] t, int[] SA, Text s, int[] bkt, int n, int K) {
+    getBuckets(s, bkt, n, K, false);
+    for (int i = 0; i < n; i++) {
+      int j = SA[i] - 1;
+      if (j >= 0 && !getType(t, j)) {
+        SA[bkt[s.get(j)]++] = j;
+      }
+    }
+  }
+
+  private static void induceS(long[] t, int[] SA, Text s, int[] bkt, int n, int K) {
+    getBuckets(s, bkt, n, K, true);
+    for (int i = n - 1; i >= 0; i--) {
+      int j = SA[i] - 1;
+      if (j >= 0 && getType(t, j)) {
+        SA[--bkt[s.get(j)]] = j;
+      }
+    }
+  }
+
+  /**
+   * Builds the suffix array of s[0..n-1] into SA[0..n-1]. s[n-1] must be the
+   * unique smallest character and every character must be in [0, K].
+   */
+  private static void sais(Text s, int[] SA, int n, int K) {
+    int i, j;
+    long[] t = new long[(n >>> 6) + 1];
+    int[] bkt = new int[K + 1];
+
+    // Classify the suffixes into S (true) and L (false) types
+    setType(t, n - 1, true);
+    if (n > 1) {
+      setType(t, n - 2, false);
+    }
+    for (i = n - 3; i >= 0; i--) {
+      int c = s.get(i);
+      int next = s.get(i + 1);
+      setType(t, i, c < next || (c == next && getType(t, i + 1)));
+    }
+
+    // Stage 1: sort the LMS substrings
+    getBuckets(s, bkt, n, K, true);
+    for (i = 0; i < n; i++) {
+      SA[i] = -1;
+    }
+    for (i = 1; i < n; i++) {
+      if (isLMS(t, i)) {
+        SA[--bkt[s.get(i)]] = i;
+      }
+    }
+    induceL(t, SA, s, bkt, n, K);
+    induceS(t, SA, s, bkt, n, K);
+
+    // Compact the sorted LMS substrings into the first n1 slots
+    int n1 = 0;
+    for (i = 0; i < n; i++) {
+      if (isLMS(t, SA[i])) {
+        SA[n1++] = SA[i];
+      }
+    }
+
+    // Name the LMS substrings
+    for (i = n1; i < n; i++) {
+      SA[i] = -1;
+    }
+    int name = 0;
+    int prev = -1;
+    for (i = 0; i < n1; i++) {
+      int pos = SA[i];
+      boolean diff = false;
+      for (int d = 0; d < n; d++) {
+        if (prev == -1 || s.get(pos + d) != s.get(prev + d) || getType(t, pos + d) != getType(t, prev + d)) {
+          diff = true;
+          break;
+        } else if (d > 0 && (isLMS(t, pos + d) || isLMS(t, prev + d))) {
+          break;
+        }
+      }
+      if (diff) {
+        name++;
+        prev = pos;
+      }
+      SA[n1 + (pos >>> 1)] = name - 1;
+    }
+    for (i = n - 1, j = n - 1; i >= n1; i--) {
+      if (SA[i] >= 0) {
+        SA[j--] = SA[i];
+      }
+    }
+
+    // Stage 2: sort the reduced string, stored at the end of SA
+    int s1Offset = n - n1;
+    if (name < n1) {
+      sais(new IntText(SA, s1Offset), SA, n1, name - 1);
+    } else {
+      for (i = 0; i < n1; i++) {
+        SA[SA[s1Offset + i]] = i;
+      }
+    }
+
+    // Stage 3: induce the full suffix array from the sorted LMS suffixes
+    getBuckets(s, bkt, n, K, true);
+    for (i = 1, j = 0; i < n; i++) {
+      if (isLMS(t, i)) {
+        SA[s1Offset + j++] = i;
+      }
+    }
+    for (i = 0; i < n1; i++) {
+      SA[i] = SA[s1Offset + SA[i]];
+    }
+    for (i = n1; i < n; i++) {
+      SA[i] = -1;
+    }
+    for (i = n1 - 1; i >= 0; i--) {
+      j = SA[i];
+      SA[i] = -1;
+      SA[--bkt[s.get(j)]] = j;
+    }
+    induceL(t, SA, s, bkt, n, K);
+    induceS(t, SA, s, bkt, n, K);
+  }
+}
@@ -0,0 +1,621 @@
+package org.spoutcraft.launcher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Deletes old backups once they are past the count, age or disk budget set in
+ * {@link SettingsUtil}. Every backup taken is recorded in a small index in
+ * the backup directory, so finding the backups past their count or age never
+ * lists the directory. The index is rebuilt from the directory only when it
+ * is missing.
+ * <p>
+ * The disk budget is checked against the bytes the index charges each backup
+ * with: what it added to the disk when it was taken, and what it inherited
+ * from deleted backups it shares chunks or links with. Only when that says the
+ * budget is exceeded, or when the index is rebuilt, is what the backups really
+ * use measured, since backups share chunks and links with each other and with
+ * the modpack. The measurement is written back to the index. Backups taken at
+ * the same time, such as a snapshot and the incremental backup of its worlds,
+ * count as one.
+ * <p>
+ * All work runs on a single low priority thread, in the order it was asked
+ * for.
+ */
+public class BackupRetention {
+
+  private static final String          INDEX         = "retention.index";
+  private static final String[]        SUFFIXES      = { "-backup.zip", SnapshotBackup.SNAPSHOT_SUFFIX, BackupStore.MANIFEST_SUFFIX };
+  private static final long            DAY           = 24L * 60 * 60 * 1000;
+  private static final long            MEGABYTE      = 1024 * 1024;
+  // Leftovers of interrupted backups are only removed once surely abandoned
+  private static final long            STALE_TEMP    = 60 * 60 * 1000;
+
+  private static final ExecutorService executor      = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                                                       public Thread newThread(Runnable runnable) {
+                                                         Thread thread = new Thread(runnable, "Backup retention");
+                                                         thread.setDaemon(true);
+                                                         thread.setPriority(Thread.MIN_PRIORITY);
+                                                         return thread;
+                                                       }
+                                                     });
+
+  /**
+   * Adds a backup to the index of its directory.
+   *
+   * @param bytes
+   *          the backup added to the disk
+   */
+  public static void record(final File backup, final long bytes) {
+    final long created = System.currentTimeMillis();
+    executor.execute(new Runnable() {
+      public void run() {
+        File backupDir = backup.getParentFile();
+        try {
+          if (!getIndexFile(backupDir).exists()) {
+            // The rebuilt index already has it
+            writeIndex(backupDir, rebuildIndex(backupDir));
+            return;
+          }
+          Writer writer = new OutputStreamWriter(new FileOutputStream(getIndexFile(backupDir), true), StandardCharsets.UTF_8);
+          try {
+            writer.write(new Entry(created, bytes, backup.getName()).toLine());
+          } finally {
+            writer.close();
+          }
+        } catch (IOException e) {
+          Util.log("Could not record backup '%s': %s", backup.getName(), e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Deletes the backups in backupDir that are past the retention settings, in
+   * the background.
+   */
+  public static void schedule(final File backupDir) {
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          prune(backupDir);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  private static void prune(File backupDir) throws IOException {
+    List<Entry> entries = readIndex(backupDir);
+    sortNewestFirst(entries);
+    Map<String, List<Entry>> grouped = new LinkedHashMap<String, List<Entry>>();
+    for (Entry entry : entries) {
+      List<Entry> backup = grouped.get(entry.getId());
+      if (backup == null) {
+        backup = new ArrayList<Entry>();
+        grouped.put(entry.getId(), backup);
+      }
+      backup.add(entry);
+    }
+    List<List<Entry>> backups = new ArrayList<List<Entry>>(grouped.values());
+
+    int count = SettingsUtil.getBackupCount();
+    long maxAge = SettingsUtil.getBackupMaxAge() * DAY;
+    long budget = SettingsUtil.getBackupBudget() * MEGABYTE;
+    long now = System.currentTimeMillis();
+    // The newest backup is always kept, whatever the settings
+    List<List<Entry>> expired = new ArrayList<List<Entry>>();
+    for (int i = 1; i < backups.size(); i++) {
+      List<Entry> backup = backups.get(i);
+      if ((count > 0 && i >= count) || (maxAge > 0 && now - backup.get(0).created > maxAge)) {
+        expired.add(backup);
+      }
+    }
+
+    long before = getBytes(entries);
+    int deleted = 0;
+    if (!expired.isEmpty()) {
+      deleted += expire(backupDir, expired, entries);
+      backups.removeAll(expired);
+    }
+    boolean measured = budget > 0 && getBytes(entries) > budget;
+    if (measured) {
+      deleted += enforceBudget(backupDir, backups, entries, budget);
+    }
+    if (deleted == 0 && !measured) {
+      return;
+    }
+    writeIndex(backupDir, entries);
+    if (deleted > 0) {
+      Util.logi("Deleted %d old backups and reclaimed %d KB, %d backups remain using %d KB", deleted, Math.max(0, before - getBytes(entries)) / 1024, backups.size(), getBytes(entries) / 1024);
+    }
+  }
+
+  /**
+   * Deletes backups past their count or age. What a deleted backup shared with
+   * the ones that remain stays on the disk, so that part of its charge moves
+   * to the oldest remaining backup of the same kind.
+   *
+   * @return number of backups deleted
+   */
+  private static int expire(File backupDir, List<List<Entry>> expired, List<Entry> entries) throws IOException {
+    Map<Entry, Long> shared = new HashMap<Entry, Long>();
+    for (List<Entry> backup : expired) {
+      for (Entry entry : backup) {
+        File file = new File(backupDir, entry.name);
+        if (SnapshotBackup.isSnapshot(file)) {
+          shared.put(entry, entry.bytes - measureUnshared(file));
+        } else if (entry.name.endsWith(BackupStore.MANIFEST_SUFFIX)) {
+          shared.put(entry, entry.bytes - file.length());
+        }
+      }
+    }
+    boolean storeChanged = delete(backupDir, expired, entries);
+    long sharedChunks = 0;
+    long sharedLinks = 0;
+    for (Map.Entry<Entry, Long> entry : shared.entrySet()) {
+      if (entries.contains(entry.getKey())) {
+        continue;
+      }
+      if (entry.getKey().name.endsWith(BackupStore.MANIFEST_SUFFIX)) {
+        sharedChunks += Math.max(0, entry.getValue());
+      } else {
+        sharedLinks += Math.max(0, entry.getValue());
+      }
+    }
+    if (storeChanged) {
+      // Chunks no remaining manifest uses are gone, the rest is still shared
+      sharedChunks -= BackupStore.collectGarbage(backupDir);
+    }
+    charge(entries, BackupStore.MANIFEST_SUFFIX, sharedChunks);
+    charge(entries, SnapshotBackup.SNAPSHOT_SUFFIX, sharedLinks);
+    return expired.size();
+  }
+
+  /**
+   * Adds bytes to the oldest backup in entries, newest first, whose name ends
+   * with suffix.
+   */
+  private static void charge(List<Entry> entries, String suffix, long bytes) {
+    if (bytes <= 0) {
+      return;
+    }
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Entry entry = entries.get(i);
+      if (entry.name.endsWith(suffix)) {
+        entry.bytes += bytes;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Measures what the backups really use and deletes the oldest ones until
+   * that fits the budget. The index entries are charged with the measurement.
+   *
+   * @return number of backups deleted
+   */
+  private static int enforceBudget(File backupDir, List<List<Entry>> backups, List<Entry> entries, long budget) throws IOException {
+    Usage usage = new Usage(backupDir, entries);
+    boolean storeChanged = false;
+    int deleted = 0;
+    // The oldest backups go first. A backup whose data newer backups still
+    // share would free nothing and is kept, until deleting a newer one leaves
+    // the data to it alone.
+    boolean progress = true;
+    while (usage.total > budget && progress) {
+      progress = false;
+      for (int i = backups.size() - 1; i > 0 && usage.total > budget; i--) {
+        List<Entry> backup = backups.get(i);
+        if (usage.release(backup, false) == 0) {
+          continue;
+        }
+        usage.release(backup, true);
+        storeChanged |= delete(backupDir, Collections.singletonList(backup), entries);
+        backups.remove(i);
+        deleted++;
+        progress = true;
+      }
+    }
+    if (usage.total > budget) {
+      Util.log("Backups use %d KB, more than the budget of %d KB, but the rest is shared with the newest backup", usage.total / 1024, budget / 1024);
+    }
+    if (storeChanged) {
+      BackupStore.collectGarbage(backupDir);
+    }
+    usage.charge(entries);
+    return deleted;
+  }
+
+  private static long getBytes(List<Entry> entries) {
+    long bytes = 0;
+    for (Entry entry : entries) {
+      bytes += entry.bytes;
+    }
+    return bytes;
+  }
+
+  private static void sortNewestFirst(List<Entry> entries) {
+    Collections.sort(entries, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return Long.compare(b.created, a.created);
+      }
+    });
+  }
+
+  /**
+   * @return true if a manifest was deleted, so the chunk store has garbage
+   */
+  private static boolean delete(File backupDir, List<List<Entry>> backups, List<Entry> entries) {
+    boolean storeChanged = false;
+    for (List<Entry> backup : backups) {
+      for (Entry entry : backup) {
+        File file = new File(backupDir, entry.name);
+        if (!file.exists() || FileUtils.deleteQuietly(file)) {
+          entries.remove(entry);
+          storeChanged |= entry.name.endsWith(BackupStore.MANIFEST_SUFFIX);
+        } else {
+          Util.log("Could not delete backup '%s'", file.getPath());
+        }
+      }
+    }
+    return storeChanged;
+  }
+
+  /**
+   * Adds the files below dir to inodes, counting how often each is found.
+   * Files whose links cannot be counted are keyed by their path, as if they
+   * had a single link.
+   */
+  private static void collectInodes(File dir, Map<Object, Inode> inodes) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        collectInodes(file, inodes);
+        continue;
+      }
+      Object key = file;
+      int links = 1;
+      try {
+        Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        Object nlink = Files.getAttribute(file.toPath(), "unix:nlink");
+        if (fileKey != null && nlink instanceof Integer) {
+          key = fileKey;
+          links = (Integer) nlink;
+        }
+      } catch (UnsupportedOperationException ignore) {
+      } catch (IllegalArgumentException ignore) {
+      } catch (IOException ignore) {
+      }
+      Inode inode = inodes.get(key);
+      if (inode == null) {
+        inode = new Inode(file.length(), links);
+        inodes.put(key, inode);
+      }
+      inode.found++;
+    }
+  }
+
+  private static File getIndexFile(File backupDir) {
+    return new File(backupDir, INDEX);
+  }
+
+  private static List<Entry> readIndex(File backupDir) throws IOException {
+    File indexFile = getIndexFile(backupDir);
+    if (!indexFile.exists()) {
+      List<Entry> entries = rebuildIndex(backupDir);
+      writeIndex(backupDir, entries);
+      return entries;
+    }
+    List<Entry> entries = new ArrayList<Entry>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] split = line.split("\\|", 3);
+        if (split.length != 3) {
+          continue;
+        }
+        try {
+          entries.add(new Entry(Long.parseLong(split[0]), Long.parseLong(split[1]), split[2]));
+        } catch (NumberFormatException ignore) {
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  private static void writeIndex(File backupDir, List<Entry> entries) throws IOException {
+    File indexFile = getIndexFile(backupDir);
+    File tempFile = new File(backupDir, INDEX + ".tmp");
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+    try {
+      for (Entry entry : entries) {
+        writer.write(entry.toLine());
+      }
+      writer.close();
+      writer = null;
+      FileUtils.moveAtomically(tempFile, indexFile);
+    } finally {
+      Util.closeQuietly(writer);
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Indexes the backups found in backupDir, charging them with a measurement
+   * of what they use.
+   */
+  private static List<Entry> rebuildIndex(File backupDir) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    File[] files = backupDir.listFiles();
+    if (files == null) {
+      return entries;
+    }
+    long now = System.currentTimeMillis();
+    for (File file : files) {
+      if (file.getName().endsWith(".tmp")) {
+        if (now - file.lastModified() > STALE_TEMP) {
+          FileUtils.deleteQuietly(file);
+        }
+      } else if (SnapshotBackup.isSnapshot(file) || (file.isFile() && getId(file.getName()) != null)) {
+        entries.add(new Entry(file.lastModified(), 0, file.getName()));
+      }
+    }
+    sortNewestFirst(entries);
+    new Usage(backupDir, entries).charge(entries);
+    Util.logi("Rebuilt the backup index of '%s' with %d backups", backupDir.getPath(), entries.size());
+    return entries;
+  }
+
+  /**
+   * @return size of the files below dir that have no other link, what
+   *         deleting dir frees
+   */
+  private static long measureUnshared(File dir) {
+    long bytes = 0;
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        bytes += measureUnshared(file);
+        continue;
+      }
+      try {
+        Object links = Files.getAttribute(file.toPath(), "unix:nlink");
+        if (links instanceof Integer && (Integer) links > 1) {
+          continue;
+        }
+      } catch (UnsupportedOperationException ignore) {
+      } catch (IllegalArgumentException ignore) {
+      } catch (IOException ignore) {
+      }
+      bytes += file.length();
+    }
+    return bytes;
+  }
+
+  private static String getId(String name) {
+    for (String suffix : SUFFIXES) {
+      if (name.endsWith(suffix)) {
+        return name.substring(0, name.length() - suffix.length());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * What the backups take on disk. Backups share chunks and links with each
+   * other and snapshots share links with the modpack, so every piece of data
+   * is counted once, and it is freed only with the last backup that has it.
+   * Each backup is read once, deleting them is worked out in memory.
+   */
+  private static class Usage {
+    private final File                              backupDir;
+    private final Map<String, Long>                 chunkSizes;
+    private final Map<String, Integer>              chunkRefs = new HashMap<String, Integer>();
+    private final Map<Object, Inode>                inodes    = new HashMap<Object, Inode>();
+    // The chunks of each manifest and the files of each snapshot
+    private final Map<String, Set<String>>          chunksOf  = new HashMap<String, Set<String>>();
+    private final Map<String, Map<Object, Integer>> inodesOf  = new HashMap<String, Map<Object, Integer>>();
+    private long                                    total     = 0;
+
+    private Usage(File backupDir, List<Entry> entries) throws IOException {
+      this.backupDir = backupDir;
+      this.chunkSizes = BackupStore.getChunkSizes(backupDir);
+      for (Entry entry : entries) {
+        File file = new File(backupDir, entry.name);
+        if (SnapshotBackup.isSnapshot(file)) {
+          Map<Object, Inode> found = new HashMap<Object, Inode>();
+          collectInodes(file, found);
+          Map<Object, Integer> counts = new HashMap<Object, Integer>();
+          for (Map.Entry<Object, Inode> inode : found.entrySet()) {
+            Inode known = inodes.get(inode.getKey());
+            if (known == null) {
+              known = new Inode(inode.getValue().size, inode.getValue().links);
+              inodes.put(inode.getKey(), known);
+            }
+            boolean counted = known.isBackupOnly();
+            known.found += inode.getValue().found;
+            if (!counted && known.isBackupOnly()) {
+              total += known.size;
+            }
+            counts.put(inode.getKey(), inode.getValue().found);
+          }
+          inodesOf.put(entry.name, counts);
+        } else {
+          total += file.length();
+          if (entry.name.endsWith(BackupStore.MANIFEST_SUFFIX)) {
+            Set<String> chunks = BackupStore.getChunks(file);
+            for (String chunk : chunks) {
+              Integer refs = chunkRefs.get(chunk);
+              chunkRefs.put(chunk, refs == null ? 1 : refs + 1);
+              if (refs == null) {
+                total += getChunkSize(chunk);
+              }
+            }
+            chunksOf.put(entry.name, chunks);
+          }
+        }
+      }
+    }
+
+    /**
+     * Works out what deleting backup frees, and takes it out of the usage if
+     * apply is set.
+     *
+     * @return bytes of data freed, not counting the manifest itself
+     */
+    private long release(List<Entry> backup, boolean apply) {
+      long freed = 0;
+      for (Entry entry : backup) {
+        Map<Object, Integer> counts = inodesOf.get(entry.name);
+        Set<String> chunks = chunksOf.get(entry.name);
+        if (counts != null) {
+          for (Map.Entry<Object, Integer> inode : counts.entrySet()) {
+            Inode known = inodes.get(inode.getKey());
+            int remaining = known.found - inode.getValue();
+            if (known.isBackupOnly() && remaining == 0) {
+              freed += known.size;
+            }
+            if (apply) {
+              known.found = remaining;
+              known.links -= inode.getValue();
+            }
+          }
+        } else if (chunks != null) {
+          for (String chunk : chunks) {
+            int refs = chunkRefs.get(chunk);
+            if (refs == 1) {
+              freed += getChunkSize(chunk);
+            }
+            if (apply) {
+              chunkRefs.put(chunk, refs - 1);
+            }
+          }
+          if (apply) {
+            total -= new File(backupDir, entry.name).length();
+          }
+        } else {
+          freed += new File(backupDir, entry.name).length();
+        }
+        if (apply) {
+          inodesOf.remove(entry.name);
+          chunksOf.remove(entry.name);
+        }
+      }
+      if (apply) {
+        total -= freed;
+      }
+      return freed;
+    }
+
+    /**
+     * Charges each backup in entries, newest first, with the data it was the
+     * first to hold, so the charges add up to the total.
+     */
+    private void charge(List<Entry> entries) {
+      Set<Object> chargedInodes = new HashSet<Object>();
+      Set<String> chargedChunks = new HashSet<String>();
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        Entry entry = entries.get(i);
+        Map<Object, Integer> counts = inodesOf.get(entry.name);
+        long bytes = 0;
+        if (counts != null) {
+          for (Object key : counts.keySet()) {
+            Inode known = inodes.get(key);
+            if (known.isBackupOnly() && chargedInodes.add(key)) {
+              bytes += known.size;
+            }
+          }
+        } else {
+          bytes = new File(backupDir, entry.name).length();
+          Set<String> chunks = chunksOf.get(entry.name);
+          if (chunks != null) {
+            for (String chunk : chunks) {
+              if (chargedChunks.add(chunk)) {
+                bytes += getChunkSize(chunk);
+              }
+            }
+          }
+        }
+        entry.bytes = bytes;
+      }
+    }
+
+    private long getChunkSize(String chunk) {
+      Long size = chunkSizes.get(chunk);
+      return size == null ? 0 : size;
+    }
+  }
+
+  private static class Inode {
+    private final long size;
+    private int        links;
+    private int        found = 0;
+
+    private Inode(long size, int links) {
+      this.size = size;
+      this.links = links;
+    }
+
+    /**
+     * @return true if every link is in a backup, the modpack does not have
+     *         this file any more
+     */
+    private boolean isBackupOnly() {
+      return found >= links;
+    }
+  }
+
+  private static class Entry {
+    private final long   created;
+    private long         bytes;
+    private final String name;
+
+    private Entry(long created, long bytes, String name) {
+      this.created = created;
+      this.bytes = bytes;
+      this.name = name;
+    }
+
+    private String getId() {
+      String id = BackupRetention.getId(name);
+      return id == null ? name : id;
+    }
+
+    private String toLine() {
+      return created + "|" + bytes + "|" + name + "\n";
+    }
+  }
+}
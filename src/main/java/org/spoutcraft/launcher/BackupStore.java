@@ -0,0 +1,399 @@
+package org.spoutcraft.launcher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.spoutcraft.launcher.async.DownloadListener;
+
+/**
+ * Incremental backups of a directory. Files are cut into chunks at
+ * content-defined boundaries, so an edit only changes the chunks around it,
+ * and every chunk is stored once under backups/chunks, deflated and keyed by
+ * its SHA-1. A snapshot is a small manifest listing each file with its chunks.
+ * <p>
+ * Files whose size and modification time match the previous snapshot reuse
+ * its chunk list without being read, so taking a snapshot costs about as much
+ * as what changed since the last one.
+ */
+public class BackupStore {
+
+  public static final String  MANIFEST_SUFFIX = "-backup.manifest";
+
+  private static final String CHUNKS_DIR      = "chunks";
+  private static final int    MIN_CHUNK       = 16 * 1024;
+  private static final int    MAX_CHUNK       = 256 * 1024;
+  // Boundaries where the low 16 bits of the hash are zero, 64K on average
+  private static final int    BOUNDARY_MASK   = (1 << 16) - 1;
+  private static final int[]  GEAR            = new int[256];
+  // Files modified this close to the previous snapshot may have changed
+  // again within the same mtime tick
+  private static final long   RACY_WINDOW     = 2000;
+
+  static {
+    Random random = new Random(0x5ca1ab1e);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextInt();
+    }
+  }
+
+  /**
+   * Takes a snapshot of every file below sourceDir, except those below the
+   * excluded directories.
+   *
+   * @param sourceDir
+   *          directory to back up
+   * @param exclude
+   *          directories to leave out
+   * @param backupDir
+   *          where the chunks and manifests are kept
+   * @param name
+   *          of the snapshot, the manifest is named name + {@link #MANIFEST_SUFFIX}
+   * @param listener
+   *          for progress, may be null
+   * @return the manifest of the snapshot
+   */
+  public static synchronized File snapshot(File sourceDir, Set<File> exclude, File backupDir, String name, DownloadListener listener) throws IOException {
+    File chunksDir = new File(backupDir, CHUNKS_DIR);
+    File latest = getLatestManifest(backupDir);
+    Map<String, Entry> previous = readManifest(latest);
+    long trustedBefore = latest == null ? 0 : latest.lastModified() - RACY_WINDOW;
+    List<String> paths = new ArrayList<String>();
+    collect(sourceDir, exclude, "", paths);
+    Collections.sort(paths);
+
+    File manifest = new File(backupDir, name + MANIFEST_SUFFIX);
+    File tempFile = new File(backupDir, manifest.getName() + ".tmp");
+    Stats stats = new Stats();
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+    try {
+      for (int i = 0; i < paths.size(); i++) {
+        String path = paths.get(i);
+        File file = new File(sourceDir, path);
+        // The chunks of the latest manifest are still there, retention always
+        // keeps it and collectGarbage cannot run while this holds the lock
+        Entry entry = previous.get(path);
+        if (entry == null || entry.size != file.length() || entry.modified != file.lastModified() || entry.modified >= trustedBefore) {
+          entry = new Entry(file.length(), file.lastModified(), storeChunks(file, chunksDir, stats));
+          stats.filesRead++;
+        }
+        writer.write(entry.toLine(path));
+        if (listener != null) {
+          listener.stateChanged(String.format("Backing up '%s'...", path), 100F * (i + 1) / paths.size());
+        }
+      }
+      writer.close();
+      writer = null;
+      FileUtils.moveAtomically(tempFile, manifest);
+    } finally {
+      Util.closeQuietly(writer);
+      tempFile.delete();
+    }
+    Util.logi("Backed up %d files to '%s', read %d changed files and stored %d new chunks (%d bytes)", paths.size(), manifest.getName(), stats.filesRead, stats.newChunks, stats.bytesStored);
+    BackupRetention.record(manifest, manifest.length() + stats.bytesStored);
+    return manifest;
+  }
+
+  /**
+   * @return size of every chunk in backupDir, by hash
+   */
+  public static synchronized Map<String, Long> getChunkSizes(File backupDir) {
+    Map<String, Long> sizes = new HashMap<String, Long>();
+    File[] dirs = new File(backupDir, CHUNKS_DIR).listFiles();
+    if (dirs == null) {
+      return sizes;
+    }
+    for (File dir : dirs) {
+      File[] chunks = dir.listFiles();
+      if (chunks == null) {
+        continue;
+      }
+      for (File chunk : chunks) {
+        sizes.put(chunk.getName(), chunk.length());
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * @return every chunk the manifest refers to, once each
+   */
+  public static Set<String> getChunks(File manifest) throws IOException {
+    Set<String> chunks = new HashSet<String>();
+    for (Entry entry : readManifest(manifest).values()) {
+      chunks.addAll(entry.chunks);
+    }
+    return chunks;
+  }
+
+  /**
+   * Deletes the chunks that no manifest in backupDir refers to any more.
+   *
+   * @return bytes freed
+   */
+  public static synchronized long collectGarbage(File backupDir) throws IOException {
+    Set<String> referenced = new HashSet<String>();
+    File[] manifests = backupDir.listFiles();
+    if (manifests == null) {
+      return 0;
+    }
+    for (File manifest : manifests) {
+      if (manifest.getName().endsWith(MANIFEST_SUFFIX)) {
+        referenced.addAll(getChunks(manifest));
+      }
+    }
+    File[] dirs = new File(backupDir, CHUNKS_DIR).listFiles();
+    if (dirs == null) {
+      return 0;
+    }
+    long freed = 0;
+    int deleted = 0;
+    for (File dir : dirs) {
+      File[] chunks = dir.listFiles();
+      if (chunks == null) {
+        continue;
+      }
+      for (File chunk : chunks) {
+        long length = chunk.length();
+        if (!referenced.contains(chunk.getName()) && chunk.delete()) {
+          freed += length;
+          deleted++;
+        }
+      }
+    }
+    Util.logi("Deleted %d unused backup chunks (%d bytes)", deleted, freed);
+    return freed;
+  }
+
+  /**
+   * Rebuilds the files of a snapshot in destination, replacing files that
+   * exist there. Every chunk is checked against its hash.
+   */
+  public static void restore(File manifest, File destination) throws IOException {
+    File chunksDir = new File(manifest.getParentFile(), CHUNKS_DIR);
+    Map<String, Entry> entries = readManifest(manifest);
+    byte[] buffer = new byte[64 * 1024];
+    for (Map.Entry<String, Entry> file : entries.entrySet()) {
+      File target = new File(destination, file.getKey());
+      target.getParentFile().mkdirs();
+      File tempFile = new File(target.getParentFile(), target.getName() + ".restore.tmp");
+      try {
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+          for (String chunk : file.getValue().chunks) {
+            MessageDigest digest = newDigest();
+            InputStream in = new InflaterInputStream(new FileInputStream(getChunkFile(chunksDir, chunk)));
+            try {
+              int read;
+              while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+              }
+            } finally {
+              in.close();
+            }
+            if (!Hex.encodeHexString(digest.digest()).equals(chunk)) {
+              throw new IOException(String.format("Backup chunk '%s' of '%s' is corrupt", chunk, file.getKey()));
+            }
+          }
+        } finally {
+          out.close();
+        }
+        tempFile.setLastModified(file.getValue().modified);
+        FileUtils.moveAtomically(tempFile, target);
+      } finally {
+        tempFile.delete();
+      }
+    }
+    Util.logi("Restored %d files from '%s' to '%s'", entries.size(), manifest.getName(), destination.getPath());
+  }
+
+  /**
+   * @return the most recent snapshot manifest in backupDir, or null if there
+   *         is none
+   */
+  public static File getLatestManifest(File backupDir) {
+    File latest = null;
+    File[] files = backupDir.listFiles();
+    if (files == null) {
+      return null;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(MANIFEST_SUFFIX) && (latest == null || file.lastModified() > latest.lastModified())) {
+        latest = file;
+      }
+    }
+    return latest;
+  }
+
+  private static void collect(File dir, Set<File> exclude, String prefix, List<String> paths) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (exclude.contains(file)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        collect(file, exclude, prefix + file.getName() + "/", paths);
+      } else if (file.isFile()) {
+        paths.add(prefix + file.getName());
+      }
+    }
+  }
+
+  /**
+   * Cuts a file into chunks and stores those the store does not have yet.
+   *
+   * @return hashes of the chunks, in order
+   */
+  private static List<String> storeChunks(File file, File chunksDir, Stats stats) throws IOException {
+    List<String> chunks = new ArrayList<String>();
+    byte[] chunk = new byte[MAX_CHUNK];
+    byte[] buffer = new byte[64 * 1024];
+    int length = 0;
+    int hash = 0;
+    InputStream in = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        for (int i = 0; i < read; i++) {
+          byte b = buffer[i];
+          chunk[length++] = b;
+          hash = (hash << 1) + GEAR[b & 0xFF];
+          if ((length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) || length == MAX_CHUNK) {
+            chunks.add(storeChunk(chunk, length, chunksDir, stats));
+            length = 0;
+            hash = 0;
+          }
+        }
+      }
+      if (length > 0) {
+        chunks.add(storeChunk(chunk, length, chunksDir, stats));
+      }
+    } finally {
+      in.close();
+    }
+    return chunks;
+  }
+
+  private static String storeChunk(byte[] data, int length, File chunksDir, Stats stats) throws IOException {
+    MessageDigest digest = newDigest();
+    digest.update(data, 0, length);
+    String hash = Hex.encodeHexString(digest.digest());
+    File chunkFile = getChunkFile(chunksDir, hash);
+    if (chunkFile.exists()) {
+      return hash;
+    }
+    chunkFile.getParentFile().mkdirs();
+    File tempFile = new File(chunkFile.getParentFile(), hash + ".tmp");
+    try {
+      OutputStream out = new DeflaterOutputStream(new FileOutputStream(tempFile), new Deflater(Deflater.BEST_SPEED));
+      try {
+        out.write(data, 0, length);
+      } finally {
+        out.close();
+      }
+      stats.newChunks++;
+      stats.bytesStored += tempFile.length();
+      FileUtils.moveAtomically(tempFile, chunkFile);
+    } finally {
+      tempFile.delete();
+    }
+    return hash;
+  }
+
+  private static File getChunkFile(File chunksDir, String hash) {
+    return new File(new File(chunksDir, hash.substring(0, 2)), hash);
+  }
+
+  private static Map<String, Entry> readManifest(File manifest) throws IOException {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    if (manifest == null) {
+      return entries;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] split = line.split("\\|", 4);
+        if (split.length != 4) {
+          continue;
+        }
+        List<String> chunks = new ArrayList<String>();
+        if (!split[2].isEmpty()) {
+          Collections.addAll(chunks, split[2].split(","));
+        }
+        try {
+          entries.put(split[3], new Entry(Long.parseLong(split[0]), Long.parseLong(split[1]), chunks));
+        } catch (NumberFormatException ignore) {
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Entry {
+    private final long         size;
+    private final long         modified;
+    private final List<String> chunks;
+
+    private Entry(long size, long modified, List<String> chunks) {
+      this.size = size;
+      this.modified = modified;
+      this.chunks = chunks;
+    }
+
+    private String toLine(String path) {
+      StringBuilder line = new StringBuilder();
+      line.append(size).append('|').append(modified).append('|');
+      for (int i = 0; i < chunks.size(); i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+        line.append(chunks.get(i));
+      }
+      return line.append('|').append(path).append('\n').toString();
+    }
+  }
+
+  private static class Stats {
+    private int  filesRead   = 0;
+    private int  newChunks   = 0;
+    private long bytesStored = 0;
+  }
+}
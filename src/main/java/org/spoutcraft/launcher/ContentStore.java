@@ -0,0 +1,265 @@
+package org.spoutcraft.launcher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed store shared by all modpacks. Every blob is stored once
+ * under cache/objects, keyed by its MD5, and files in the cache and in each
+ * modpack are hard links to it (or copies where the file system cannot link).
+ * <p>
+ * The store remembers which files reference each blob, so blobs that are no
+ * longer used by any file can be removed by {@link #collectGarbage()}. New
+ * references are appended to the references file, which is rewritten when it
+ * is first loaded and after garbage collection.
+ */
+public class ContentStore {
+
+  private static final File               objectsDir = new File(GameUpdater.cacheDir, "objects");
+  private static final File               refsFile   = new File(objectsDir, "refs.txt");
+
+  private static Map<String, Set<String>> refs       = null;
+  private static Writer                   refsLog    = null;
+  private static int                      links      = 0;
+  private static int                      copies     = 0;
+  private static long                     bytesSaved = 0;
+
+  public static File getBlob(String md5) {
+    md5 = md5.toLowerCase();
+    return new File(new File(objectsDir, md5.substring(0, 2)), md5);
+  }
+
+  /**
+   * Moves a file into the store. If the store already holds the same content
+   * the file is simply deleted. A blob that no longer matches its MD5, for
+   * example because a file linked to it was modified in place, is replaced.
+   * 
+   * @return the blob holding the content
+   */
+  public static synchronized File store(File source, String md5) throws IOException {
+    File blob = getBlob(md5);
+    if (isIntact(blob, md5)) {
+      source.delete();
+    } else {
+      FileUtils.moveAtomically(source, blob);
+    }
+    return blob;
+  }
+
+  /**
+   * Adds an existing file to the store without moving it, by linking the blob
+   * to it.
+   * 
+   * @return MD5 of the file
+   */
+  public static synchronized String adopt(File file) throws IOException {
+    String md5 = MD5Utils.getMD5(file);
+    if (md5 == null) {
+      throw new IOException("Cannot read " + file);
+    }
+    File blob = getBlob(md5);
+    if (!isIntact(blob, md5)) {
+      FileUtils.linkOrCopy(file, blob);
+    }
+    addRef(md5, file);
+    return md5;
+  }
+
+  /**
+   * Makes target a link to (or a copy of) the blob with the given MD5.
+   */
+  public static synchronized void materialize(String md5, File target) throws IOException {
+    File blob = getBlob(md5);
+    if (!blob.exists()) {
+      throw new IOException("No object " + md5 + " in the content store");
+    }
+    if (isSameFile(blob, target)) {
+      addRef(md5, target);
+      return;
+    }
+    if (FileUtils.linkOrCopy(blob, target)) {
+      links++;
+      bytesSaved += blob.length();
+    } else {
+      copies++;
+    }
+    addRef(md5, target);
+  }
+
+  /**
+   * Places the content of source at target through the store, so both end up
+   * sharing one blob.
+   */
+  public static void install(File source, File target) throws IOException {
+    materialize(adopt(source), target);
+  }
+
+  /**
+   * Drops references from files that no longer exist or no longer hold the
+   * blob's content, then deletes blobs nothing refers to.
+   * 
+   * @return number of bytes reclaimed
+   */
+  public static synchronized long collectGarbage() {
+    loadRefs();
+    long reclaimed = 0;
+    Iterator<Map.Entry<String, Set<String>>> iterator = refs.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Set<String>> entry = iterator.next();
+      File blob = getBlob(entry.getKey());
+      Iterator<String> paths = entry.getValue().iterator();
+      while (paths.hasNext()) {
+        File target = new File(paths.next());
+        if (!target.exists() || (!isSameFile(blob, target) && !entry.getKey().equalsIgnoreCase(MD5Utils.getMD5(target)))) {
+          paths.remove();
+        }
+      }
+      if (entry.getValue().isEmpty()) {
+        reclaimed += blob.length();
+        blob.delete();
+        iterator.remove();
+      }
+    }
+    saveRefs();
+    if (reclaimed > 0) {
+      Util.logi("Content store reclaimed %d bytes", reclaimed);
+    }
+    return reclaimed;
+  }
+
+  public static synchronized String getReport() {
+    return String.format("Content store: %d links, %d copies, %.1f MB saved", links, copies, bytesSaved / (1024.0 * 1024.0));
+  }
+
+  /**
+   * @return true if blob exists and still holds the content of its MD5, which
+   *         only reads it when {@link FileHashIndex} has no current hash
+   */
+  private static boolean isIntact(File blob, String md5) {
+    if (!blob.exists()) {
+      return false;
+    }
+    if (md5.equalsIgnoreCase(MD5Utils.getMD5(blob))) {
+      return true;
+    }
+    Util.log("Content store object '%s' was modified, replacing it", blob.getName());
+    return false;
+  }
+
+  private static boolean isSameFile(File a, File b) {
+    try {
+      if (!a.exists() || !b.exists()) {
+        return false;
+      }
+      Object keyA = Files.readAttributes(a.toPath(), BasicFileAttributes.class).fileKey();
+      Object keyB = Files.readAttributes(b.toPath(), BasicFileAttributes.class).fileKey();
+      return keyA != null ? keyA.equals(keyB) : Files.isSameFile(a.toPath(), b.toPath());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void addRef(String md5, File target) {
+    loadRefs();
+    md5 = md5.toLowerCase();
+    Set<String> paths = refs.get(md5);
+    if (paths == null) {
+      paths = new HashSet<String>();
+      refs.put(md5, paths);
+    }
+    if (paths.add(target.getAbsolutePath())) {
+      appendRef(md5, target.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Adds one reference to the end of the references file, which
+   * {@link #saveRefs()} compacts again.
+   */
+  private static void appendRef(String md5, String path) {
+    try {
+      if (refsLog == null) {
+        objectsDir.mkdirs();
+        refsLog = new OutputStreamWriter(new FileOutputStream(refsFile, true), StandardCharsets.UTF_8);
+      }
+      refsLog.write(md5 + "|" + path + "\n");
+      refsLog.flush();
+    } catch (IOException e) {
+      Util.log("Could not write content store references '%s'", refsFile.getPath());
+      e.printStackTrace();
+    }
+  }
+
+  private static void loadRefs() {
+    if (refs != null) {
+      return;
+    }
+    refs = new HashMap<String, Set<String>>();
+    if (!refsFile.exists()) {
+      return;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(refsFile), StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] split = line.split("\\|", 2);
+        if (split.length != 2) {
+          continue;
+        }
+        Set<String> paths = refs.get(split[0]);
+        if (paths == null) {
+          paths = new HashSet<String>();
+          refs.put(split[0], paths);
+        }
+        paths.add(split[1]);
+      }
+    } catch (IOException e) {
+      Util.log("Could not read content store references '%s'", refsFile.getPath());
+      e.printStackTrace();
+    } finally {
+      Util.closeQuietly(reader);
+    }
+    // Compacted once per session, so appends never follow a truncated line
+    saveRefs();
+  }
+
+  private static void saveRefs() {
+    Util.closeQuietly(refsLog);
+    refsLog = null;
+    objectsDir.mkdirs();
+    File tempFile = new File(objectsDir, "refs.tmp");
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+      for (Map.Entry<String, Set<String>> entry : refs.entrySet()) {
+        for (String path : entry.getValue()) {
+          writer.write(entry.getKey() + "|" + path + "\n");
+        }
+      }
+      writer.close();
+      writer = null;
+      FileUtils.moveAtomically(tempFile, refsFile);
+    } catch (IOException e) {
+      Util.log("Could not write content store references '%s'", refsFile.getPath());
+      e.printStackTrace();
+    } finally {
+      Util.closeQuietly(writer);
+    }
+  }
+}
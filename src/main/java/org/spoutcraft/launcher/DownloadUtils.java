@@ -8,7 +8,9 @@
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -18,57 +20,102 @@
 
 public class DownloadUtils {
 
+  /**
+   * Downloads url to output. The MD5 is computed while the file downloads,
+   * and a verified file is moved into place in one step. If cacheName is given
+   * the file is moved into the {@link ContentStore}, and both the cache entry
+   * and output become links to it.
+   */
   public static Download downloadFile(String url, String output, String cacheName, String md5, DownloadListener listener) throws IOException {
+    return downloadFile(url, output, cacheName, md5, listener, null);
+  }
+
+  /**
+   * Downloads url to output like
+   * {@link #downloadFile(String, String, String, String, DownloadListener)},
+   * writing every byte received to tee as well. A retry that has to restart
+   * the file writes the restarted bytes to tee again.
+   * <p>
+   * A retry resumes the same URL when the last try got somewhere. When the
+   * file is missing or wrong there, or the try got nowhere, it moves on to
+   * the next best mirror and then to the fallback URL.
+   */
+  public static Download downloadFile(String url, String output, String cacheName, String md5, DownloadListener listener, OutputStream tee) throws IOException {
     if (Main.isOffline)
       return null;
     int tries = SettingsUtil.getLoginTries();
     File outputFile = new File(output);
     File tempfile = File.createTempFile("file", null, GameUpdater.tempDir);
-    tempfile.mkdirs();
-    Download download = null;
-    boolean areFilesIdentical = tempfile.getPath().equalsIgnoreCase(outputFile.getPath());
     boolean isRetry = false;
+    Set<String> tried = new HashSet<String>();
+    // The same download is run again on retries so it can resume the
+    // partial file instead of starting over
+    Download download = newDownload(url, tempfile, listener, tee);
     while (tries > 0) {
       String retryMsg = isRetry ? String.format(", with %s try(s) remaining", tries) : "";
       Util.logi("Downloading '%s'%s", url, retryMsg);
       tries--;
-      download = new Download(url, tempfile.getPath());
-      download.setListener(listener);
+      isRetry = true;
+      long started = System.currentTimeMillis();
+      long alreadyDownloaded = download.getDownloaded();
       download.run();
+      boolean moveOn;
       if (!download.isSuccess()) {
-        if (download.getOutFile() != null) {
-          download.getOutFile().delete();
+        int responseCode = download.getResponseCode();
+        // A file missing from a mirror says nothing about its health
+        boolean missing = responseCode >= 400 && responseCode < 500;
+        if (!missing) {
+          MirrorRegistry.recordFailure(url);
         }
         Util.log("Download of " + url + " Failed!");
         if (listener != null) {
           listener.stateChanged("Download Failed, retries remaining: " + tries, 0F);
         }
+        moveOn = missing || download.getDownloaded() <= alreadyDownloaded;
       } else {
-        String fileMD5 = MD5Utils.getMD5(download.getOutFile());
-        if (md5 == null || fileMD5.equals(md5)) {
-          if (!areFilesIdentical) {
-            GameUpdater.copy(tempfile, outputFile);
+        MirrorRegistry.recordSuccess(url, download.getDownloaded() - alreadyDownloaded, System.currentTimeMillis() - started);
+        String fileMD5 = download.getMD5();
+        if (md5 == null || fileMD5.equalsIgnoreCase(md5)) {
+          if (cacheName != null) {
+            File cacheFile = new File(GameUpdater.cacheDir, cacheName);
+            ContentStore.store(tempfile, fileMD5);
+            ContentStore.materialize(fileMD5, cacheFile);
+            if (!cacheFile.getAbsoluteFile().equals(outputFile.getAbsoluteFile())) {
+              ContentStore.materialize(fileMD5, outputFile);
+            }
+          } else {
+            FileUtils.moveAtomically(tempfile, outputFile);
           }
           Util.logi("Downloaded '%s'", outputFile);
           break;
-        } else if (md5 != null && !fileMD5.equals(md5)) {
+        } else {
           Util.log("Expected MD5: %s Calculated MD5: %s", md5, fileMD5);
+          download.getOutFile().delete();
+          download.reject();
+          moveOn = true;
         }
       }
-      isRetry = true;
-    }
-
-    if (cacheName != null) {
-      if (tempfile.exists()) {
-        GameUpdater.copy(tempfile, new File(GameUpdater.cacheDir, cacheName));
-      } else {
-        Util.log("Could not copy file to cache: %s", tempfile);
+      if (moveOn) {
+        tried.add(url);
+        String alternativeUrl = MirrorUtils.getAlternativeUrl(url, tried);
+        if (alternativeUrl != null) {
+          Util.log("Trying '%s' instead", alternativeUrl);
+          url = alternativeUrl;
+          download = newDownload(url, tempfile, listener, tee);
+          // Every other place the file is on gets at least one try
+          tries = Math.max(tries, 1);
+        }
       }
     }
 
-    if (!areFilesIdentical) {
-      tempfile.delete();
-    }
+    tempfile.delete();
+    return download;
+  }
+
+  private static Download newDownload(String url, File tempfile, DownloadListener listener, OutputStream tee) throws MalformedURLException {
+    Download download = new Download(url, tempfile.getPath());
+    download.setListener(listener);
+    download.setTee(tee);
     return download;
   }
 
@@ -136,15 +183,17 @@ public static boolean downloadFile(String relativePath) {
 
       // Download to temporary file
       OutputStream baos = new FileOutputStream(tempFile);
-      // new FileOutputStream(tempFile)
-      if (GameUpdater.copy(con.getInputStream(), baos) <= 0) {
-        Util.log("Download URL was empty: '%s'", url);
-        return false;
+      try {
+        if (GameUpdater.copy(con.getInputStream(), baos) <= 0) {
+          Util.log("Download URL was empty: '%s'", url);
+          return false;
+        }
+      } finally {
+        baos.close();
       }
 
-      // If no Exception then file loaded fine, copy to output file
-      GameUpdater.copy(tempFile, new File(relativePath));
-      tempFile.delete();
+      // If no Exception then file loaded fine, move it to the output file
+      FileUtils.moveAtomically(tempFile, new File(relativePath));
 
       return true;
     } catch (MalformedURLException e) {
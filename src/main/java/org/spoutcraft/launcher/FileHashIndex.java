@@ -0,0 +1,208 @@
+package org.spoutcraft.launcher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of file hashes keyed by path, size, modification time and
+ * file key. Lookups only stat the file, so checking a file that has not
+ * changed never reads its contents. MD5s and CRC-32s are kept in separate
+ * indexes.
+ * <p>
+ * Each index is an append-only log under the launcher directory. It is
+ * compacted the first time it is loaded in a session.
+ */
+public class FileHashIndex {
+
+  // Files modified this recently may still change within the same mtime tick
+  private static final long               RACY_WINDOW = 2000;
+
+  private static final FileHashIndex      md5s        = new FileHashIndex("hashes.log");
+  private static final FileHashIndex      crcs        = new FileHashIndex("crcs.log");
+
+  private final String                    indexName;
+  private final Map<String, Entry>        entries     = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean                loaded      = false;
+  private Writer                          log         = null;
+
+  private FileHashIndex(String indexName) {
+    this.indexName = indexName;
+  }
+
+  /**
+   * @return the MD5 of the file if it has not changed since it was indexed,
+   *         otherwise null
+   */
+  public static String get(File file) {
+    return md5s.lookup(file);
+  }
+
+  public static void put(File file, String md5) {
+    md5s.store(file, md5);
+  }
+
+  /**
+   * @return the CRC-32 of the file if it has not changed since it was indexed,
+   *         otherwise -1
+   */
+  public static long getCrc(File file) {
+    String crc = crcs.lookup(file);
+    return crc == null ? -1 : Long.parseLong(crc, 16);
+  }
+
+  public static void putCrc(File file, long crc) {
+    crcs.store(file, Long.toHexString(crc));
+  }
+
+  private String lookup(File file) {
+    load();
+    Entry entry = entries.get(file.getAbsolutePath());
+    if (entry == null) {
+      return null;
+    }
+    Entry current = stat(file, null);
+    if (current == null || !current.matches(entry)) {
+      entries.remove(file.getAbsolutePath(), entry);
+      return null;
+    }
+    return entry.hash;
+  }
+
+  private void store(File file, String hash) {
+    if (hash == null) {
+      return;
+    }
+    load();
+    Entry entry = stat(file, hash);
+    if (entry == null || System.currentTimeMillis() - entry.modified < RACY_WINDOW) {
+      return;
+    }
+    entries.put(file.getAbsolutePath(), entry);
+    append(file.getAbsolutePath(), entry);
+  }
+
+  private static Entry stat(File file, String hash) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        return null;
+      }
+      Object fileKey = attributes.fileKey();
+      return new Entry(hash, attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey == null ? "-" : fileKey.toString());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private File getIndexFile() {
+    return new File(GameUpdater.workDir, indexName);
+  }
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    synchronized (this) {
+      if (loaded) {
+        return;
+      }
+      File indexFile = getIndexFile();
+      if (indexFile.exists()) {
+        BufferedReader reader = null;
+        try {
+          reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            String[] split = line.split("\\|", 5);
+            if (split.length != 5) {
+              continue; // truncated write, skip it
+            }
+            try {
+              entries.put(split[4], new Entry(split[0], Long.parseLong(split[1]), Long.parseLong(split[2]), split[3]));
+            } catch (NumberFormatException ignore) {
+            }
+          }
+        } catch (IOException e) {
+          Util.log("Could not read hash index '%s'", indexFile.getPath());
+          e.printStackTrace();
+        } finally {
+          Util.closeQuietly(reader);
+        }
+      }
+      compact(indexFile);
+      loaded = true;
+    }
+  }
+
+  private void compact(File indexFile) {
+    indexFile.getParentFile().mkdirs();
+    File tempFile = new File(indexFile.getParentFile(), indexName + ".tmp");
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        if (!new File(entry.getKey()).exists()) {
+          entries.remove(entry.getKey());
+          continue;
+        }
+        writer.write(entry.getValue().toLine(entry.getKey()));
+      }
+      writer.close();
+      writer = null;
+      Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Util.log("Could not compact hash index '%s'", indexFile.getPath());
+      e.printStackTrace();
+    } finally {
+      Util.closeQuietly(writer);
+    }
+  }
+
+  private synchronized void append(String path, Entry entry) {
+    try {
+      if (log == null) {
+        log = new OutputStreamWriter(new FileOutputStream(getIndexFile(), true), StandardCharsets.UTF_8);
+      }
+      log.write(entry.toLine(path));
+      log.flush();
+    } catch (IOException e) {
+      Util.log("Could not write to hash index '%s'", getIndexFile().getPath());
+      e.printStackTrace();
+    }
+  }
+
+  private static class Entry {
+    private final String hash;
+    private final long   size;
+    private final long   modified;
+    private final String fileKey;
+
+    private Entry(String hash, long size, long modified, String fileKey) {
+      this.hash = hash;
+      this.size = size;
+      this.modified = modified;
+      this.fileKey = fileKey;
+    }
+
+    private boolean matches(Entry other) {
+      return size == other.size && modified == other.modified && fileKey.equals(other.fileKey);
+    }
+
+    private String toLine(String path) {
+      return hash + "|" + size + "|" + modified + "|" + fileKey + "|" + path + "\n";
+    }
+  }
+}
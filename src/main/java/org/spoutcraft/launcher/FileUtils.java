@@ -1,8 +1,15 @@
 package org.spoutcraft.launcher;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Apache Commons IO
@@ -161,4 +168,110 @@ public static boolean isSymlink(File file) throws IOException {
 
     return (!fileInCanonicalDir.getCanonicalFile().equals(fileInCanonicalDir.getAbsoluteFile()));
   }
+
+  /**
+   * Moves a file into place, replacing the target. The move is atomic when
+   * both files are on the same file system.
+   * 
+   * @param source
+   *          file to move
+   * @param target
+   *          destination, replaced if it exists
+   * @throws IOException
+   *           if the file could not be moved
+   */
+  public static void moveAtomically(File source, File target) throws IOException {
+    target.getAbsoluteFile().getParentFile().mkdirs();
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Makes target a hard link to source, falling back to a copy where the file
+   * system does not support hard links. Only use this for files that are
+   * never modified in place, since both paths share the same data. Either way
+   * target is replaced in one step.
+   * 
+   * @param source
+   *          existing file
+   * @param target
+   *          link to create, replaced if it exists
+   * @return true if a link was created, false if the file was copied
+   * @throws IOException
+   *           if neither a link nor a copy could be made
+   */
+  public static boolean linkOrCopy(File source, File target) throws IOException {
+    File temp = getTempFile(target);
+    try {
+      Files.createLink(temp.toPath(), source.toPath());
+      moveAtomically(temp, target);
+      return true;
+    } catch (UnsupportedOperationException e) {
+    } catch (IOException e) {
+    } finally {
+      temp.delete();
+    }
+    copy(source, target);
+    return false;
+  }
+
+  /**
+   * Copies source to target through a temporary file next to target, so
+   * target is either the old file or a complete copy, never a truncated one.
+   * The copy is left to {@link Files#copy}, which uses the file system's own
+   * copy where there is one, and falls back to {@link FileChannel#transferTo}.
+   * 
+   * @param source
+   *          file to copy
+   * @param target
+   *          destination, replaced if it exists
+   * @throws IOException
+   *           if the file could not be copied
+   */
+  public static void copy(File source, File target) throws IOException {
+    File temp = getTempFile(target);
+    try {
+      try {
+        Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (NoSuchFileException e) {
+        throw e;
+      } catch (IOException e) {
+        transfer(source, temp);
+      } catch (UnsupportedOperationException e) {
+        transfer(source, temp);
+      }
+      moveAtomically(temp, target);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private static void transfer(File source, File target) throws IOException {
+    FileInputStream in = new FileInputStream(source);
+    try {
+      FileOutputStream out = new FileOutputStream(target);
+      try {
+        FileChannel inChannel = in.getChannel();
+        FileChannel outChannel = out.getChannel();
+        long size = inChannel.size();
+        long position = 0;
+        while (position < size) {
+          position += inChannel.transferTo(position, size - position, outChannel);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File getTempFile(File target) {
+    File parent = target.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    return new File(parent, target.getName() + "." + Thread.currentThread().getId() + ".tmp");
+  }
 }
@@ -16,42 +16,29 @@
  */
 package org.spoutcraft.launcher;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.security.AccessController;
 import java.security.PrivilegedExceptionAction;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarFile;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.FileHeader;
-import net.lingala.zip4j.progress.ProgressMonitor;
 
 import org.spoutcraft.launcher.async.DownloadListener;
+import org.spoutcraft.launcher.zip.ZipExtractor;
+import org.spoutcraft.launcher.zip.ZipRewriter;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.nimbusds.jose.util.ArrayUtils;
 
 public class GameUpdater implements DownloadListener {
@@ -82,52 +69,13 @@ public class GameUpdater implements DownloadListener {
 
   private DownloadListener listener;
   
-  private JsonObject getVersionJson(String minecraftVersion) throws Exception {
-    // 1. Get the version manifest
-    JsonParser parser = new JsonParser();
-    URL manifestUrl = new URL("https://launchermeta.mojang.com/mc/game/version_manifest.json");
-    HttpURLConnection manifestConn = (HttpURLConnection) manifestUrl.openConnection();
-    JsonObject manifest = parser.parse(new InputStreamReader(manifestConn.getInputStream(), StandardCharsets.UTF_8))
-        .getAsJsonObject();
-
-    // 2. Find the version's JSON URL
-    String versionJsonUrl = null;
-    for (JsonElement version : manifest.getAsJsonArray("versions")) {
-      JsonObject v = version.getAsJsonObject();
-      if (v.get("id").getAsString().equals(minecraftVersion)) {
-        versionJsonUrl = v.get("url").getAsString();
-        break;
-      }
-    }
-    if (versionJsonUrl == null) {
-      throw new RuntimeException("Version not found in manifest: " + minecraftVersion);
-    }
-
-    // 3. Fetch the version JSON
-    URL versionUrl = new URL(versionJsonUrl);
-    HttpURLConnection versionConn = (HttpURLConnection) versionUrl.openConnection();
-    return parser.parse(new InputStreamReader(versionConn.getInputStream(), StandardCharsets.UTF_8)).getAsJsonObject();
+  public String getClientJarUrl(String minecraftVersion) throws Exception {
+    return VersionManifest.getVersion(minecraftVersion).getClientUrl();
   }
 
-  public String getClientJarUrl(String minecraftVersion) throws Exception {
-        JsonObject versionJson = getVersionJson(minecraftVersion);
-        return versionJson.getAsJsonObject("downloads").getAsJsonObject("client").get("url").getAsString();
-    }
-    
   public String[] getLwjglUrls(String minecraftVersion) throws Exception {
-        JsonObject versionJson = getVersionJson(minecraftVersion);
-        List<String> lwjglUrls = new ArrayList<>();
-        for (JsonElement libElem : versionJson.getAsJsonArray("libraries")) {
-            JsonObject lib = libElem.getAsJsonObject();
-            if (lib.getAsJsonObject("downloads") != null && lib.get("name").getAsString().contains("lwjgl")) {
-                JsonObject artifact = lib.getAsJsonObject("downloads").getAsJsonObject("artifact");
-                if (artifact != null && artifact.has("url")) {
-                    lwjglUrls.add(artifact.get("url").getAsString());
-                }
-            }
-        }
-        return lwjglUrls.toArray(new String[0]);
-    }
+    return VersionManifest.getVersion(minecraftVersion).getArtifactUrls("lwjgl").toArray(new String[0]);
+  }
 
   public GameUpdater() {
   }
@@ -186,7 +134,7 @@ public void updateMC() throws Exception {
       MinecraftDownloadUtils.downloadMinecraft(clientJarUrl, output, build, listener);
     }
     stateChanged("Copying minecraft.jar from cache", 0);
-    copy(mcCache, new File(binDir, "minecraft.jar"));
+    ContentStore.install(mcCache, new File(binDir, "minecraft.jar"));
     stateChanged("Copied minecraft.jar from cache", 100);
 
     // Download LWJGL libraries dynamically
@@ -215,7 +163,7 @@ public void updateMC() throws Exception {
 
         if (expectedName != null) {
             File outFile = new File(binDir, expectedName);
-            copy(libCache, outFile);
+            ContentStore.install(libCache, outFile);
             stateChanged("Copied " + expectedName + " from cache", 100);
         }
     }
@@ -236,69 +184,19 @@ public void updateMC() throws Exception {
     }
 
     MinecraftYML.setInstalledVersion(minecraftVersion);
+    Util.logi("%s", ContentStore.getReport());
   }
   
-  // Example method to get native library URLs for macOS
   public List<String> getNativeLibraryUrls(String minecraftVersion) {
-    List<String> nativeUrls = new ArrayList<>();
+    String nativeKey = VersionManifest.getNativeOsKey();
+    if (nativeKey == null) {
+      throw new RuntimeException("Unsupported OS for native library download: " + System.getProperty("os.name"));
+    }
     try {
-      // 1. Get the version JSON (reuse your getMinecraftURL logic)
-      URL manifestUrl = new URL("https://launchermeta.mojang.com/mc/game/version_manifest.json");
-      HttpURLConnection manifestConn = (HttpURLConnection) manifestUrl.openConnection();
-      JsonParser parser = new JsonParser();
-      JsonObject manifest = parser.parse(new InputStreamReader(manifestConn.getInputStream(), StandardCharsets.UTF_8))
-          .getAsJsonObject();
-
-      String versionJsonUrl = null;
-      for (JsonElement version : manifest.getAsJsonArray("versions")) {
-        JsonObject v = version.getAsJsonObject();
-        if (v.get("id").getAsString().equals(minecraftVersion)) {
-          versionJsonUrl = v.get("url").getAsString();
-          break;
-        }
-      }
-      if (versionJsonUrl == null) {
-        throw new RuntimeException("Version not found in manifest: " + minecraftVersion);
-      }
-
-      URL versionUrl = new URL(versionJsonUrl);
-      HttpURLConnection versionConn = (HttpURLConnection) versionUrl.openConnection();
-      JsonObject versionJson = parser.parse(new InputStreamReader(versionConn.getInputStream(), StandardCharsets.UTF_8))
-          .getAsJsonObject();
-
-      // Detect OS
-      String os = System.getProperty("os.name").toLowerCase();
-      String nativeKey;
-      if (os.contains("win")) {
-        nativeKey = "windows";
-      } else if (os.contains("mac") || os.contains("osx")) {
-        nativeKey = "osx";
-      } else if (os.contains("nux") || os.contains("nix")) {
-        nativeKey = "linux";
-      } else {
-        nativeKey = null;
-      }
-
-      if (nativeKey == null) {
-        throw new RuntimeException("Unsupported OS for native library download: " + os);
-      }
-
-      // 2. Find native libraries for the current OS
-      for (JsonElement libElem : versionJson.getAsJsonArray("libraries")) {
-        JsonObject lib = libElem.getAsJsonObject();
-        if (lib.has("natives") && lib.getAsJsonObject("natives").has(nativeKey)) {
-          String classifier = lib.getAsJsonObject("natives").get(nativeKey).getAsString();
-          JsonObject downloads = lib.getAsJsonObject("downloads");
-          if (downloads.has("classifiers") && downloads.getAsJsonObject("classifiers").has(classifier)) {
-            String url = downloads.getAsJsonObject("classifiers").getAsJsonObject(classifier).get("url").getAsString();
-            nativeUrls.add(url);
-          }
-        }
-      }
-    } catch (Exception e) {
+      return VersionManifest.getVersion(minecraftVersion).getNativeUrls(nativeKey);
+    } catch (IOException e) {
       throw new RuntimeException("Failed to get native library URLs: " + e.getMessage(), e);
     }
-    return nativeUrls;
   }
 
   public void downloadAndExtractNatives(String minecraftVersion, File nativesDir) throws Exception {
@@ -318,19 +216,9 @@ public void downloadAndExtractNatives(String minecraftVersion, File nativesDir)
             DownloadUtils.downloadFile(nativeUrl, nativeJar.getAbsolutePath(), fileName, null, listener);
         }
 
-        // Extract the native JAR into the natives directory using zip4j
-        ZipFile zipFile = new ZipFile(nativeJar);
-        @SuppressWarnings("unchecked")
-        List<FileHeader> fileHeaders = zipFile.getFileHeaders();
-        for (FileHeader fileHeader : fileHeaders) {
-            String entryName = fileHeader.getFileName();
-            if (fileHeader.isDirectory() || entryName.startsWith("META-INF")) {
-                continue;
-            }
-            File outFile = new File(nativesDir, entryName);
-            outFile.getParentFile().mkdirs();
-            zipFile.extractFile(fileHeader, nativesDir.getAbsolutePath());
-        }
+        // Only natives that changed since the last install are rewritten
+        int extracted = ZipExtractor.extract(nativeJar, nativesDir, listener, true);
+        Util.log("Extracted %d natives from %s", extracted, nativeJar.getPath());
     }
 }
 
@@ -395,28 +283,11 @@ protected void extractCompressedFile(File destinationDirectory, File compressedF
         Util.log("Creating directory %s", destinationDirectory.getPath());
         destinationDirectory.mkdirs();
       }
-      ZipFile zipFile = new ZipFile(compressedFile);
-      zipFile.setRunInThread(true);
-      zipFile.extractAll(destinationDirectory.getAbsolutePath());
-      ProgressMonitor monitor = zipFile.getProgressMonitor();
-      while (monitor.getState() == ProgressMonitor.STATE_BUSY) {
-        long totalProgress = monitor.getWorkCompleted() / monitor.getTotalWork();
-        stateChanged(String.format("Extracting '%s'...", monitor.getFileName()), totalProgress);
-      }
-      File metainfDirectory = new File(destinationDirectory, "META-INF");
-      if (metainfDirectory.exists()) {
-        Util.removeDirectory(metainfDirectory);
-      }
+      stateChanged(String.format("Extracting '%s'...", compressedFile.getName()), 0);
+      int extracted = ZipExtractor.extract(compressedFile, destinationDirectory, this, true);
       stateChanged(String.format("Extracted '%s'", compressedFile.getPath()), 100f);
-      if (monitor.getResult() == ProgressMonitor.RESULT_ERROR) {
-        if (monitor.getException() != null) {
-          monitor.getException().printStackTrace();
-        } else {
-          Util.log("An error occurred without any exception while extracting %s", compressedFile.getPath());
-        }
-      }
-      Util.log("Extracted %s to %s", compressedFile.getPath(), destinationDirectory.getPath());
-    } catch (ZipException e) {
+      Util.log("Extracted %d files from %s to %s", extracted, compressedFile.getPath(), destinationDirectory.getPath());
+    } catch (IOException e) {
       Util.log("An error occurred while extracting %s", compressedFile.getPath());
       e.printStackTrace();
     }
@@ -432,7 +303,8 @@ public void updateSpoutcraft() throws Exception {
     File mcCache = new File(cacheDir, "minecraft_" + build.getMinecraftVersion() + ".jar");
     File updateMC = new File(tempDir.getPath() + File.separator + "minecraft.jar");
     if (mcCache.exists()) {
-      copy(mcCache, updateMC);
+      // Cached jars are never modified in place
+      FileUtils.linkOrCopy(mcCache, updateMC);
     }
 
     build.install();
@@ -472,19 +344,11 @@ public static long copy(InputStream input, OutputStream output) throws IOExcepti
     return count;
   }
 
-  public static void copy(File input, File output) {
-    FileInputStream inputStream = null;
-    FileOutputStream outputStream = null;
-    try {
-      inputStream = new FileInputStream(input);
-      outputStream = new FileOutputStream(output);
-      copy(inputStream, outputStream);
-      inputStream.close();
-      outputStream.close();
-    } catch (Exception e) {
-      Util.log("Error copying file %s to %s", input, output);
-      e.printStackTrace();
-    }
+  /**
+   * Copies input to output, see {@link FileUtils#copy(File, File)}.
+   */
+  public static void copy(File input, File output) throws IOException {
+    FileUtils.copy(input, output);
   }
 
   public void performBackup() throws IOException {
@@ -493,38 +357,69 @@ public void performBackup() throws IOException {
     }
 
     String date = new StringBuilder(new SimpleDateFormat("yyyy-MM-dd-kk.mm.ss").format(new Date())).toString();
-    File zip = new File(GameUpdater.backupDir, date + "-backup.zip");
+    HashSet<File> exclude = new HashSet<File>();
+    exclude.add(GameUpdater.backupDir);
+    if (!SettingsUtil.isWorldBackup()) {
+      exclude.add(GameUpdater.savesDir);
+    }
 
-    if (!zip.exists()) {
-      String rootDir = modpackDir + File.separator;
-      HashSet<File> exclude = new HashSet<File>();
-      exclude.add(GameUpdater.backupDir);
-      if (!SettingsUtil.isWorldBackup()) {
-        exclude.add(GameUpdater.savesDir);
+    if ("zip".equalsIgnoreCase(SettingsUtil.getBackupMode())) {
+      File zip = new File(GameUpdater.backupDir, date + "-backup.zip");
+      if (zip.exists()) {
+        return;
       }
-
-      File[] existingBackups = backupDir.listFiles();
-      (new BackupCleanupThread(existingBackups)).start();
+      String rootDir = modpackDir + File.separator;
       zip.createNewFile();
       stateChanged(String.format("Backing up previous build to '%s'...", zip.getName()), 0);
-      addFilesToExistingZip(zip, getFiles(modpackDir, exclude, rootDir), rootDir, false);
+      addFilesToExistingZip(zip, getFiles(modpackDir, exclude, rootDir), rootDir, false, SettingsUtil.getBackupCompressionLevel());
+      BackupRetention.record(zip, zip.length());
       stateChanged(String.format("Backed up previous build to '%s'...", zip.getName()), 100);
+    } else if ("snapshot".equalsIgnoreCase(SettingsUtil.getBackupMode())) {
+      if (new File(GameUpdater.backupDir, date + SnapshotBackup.SNAPSHOT_SUFFIX).exists()) {
+        return;
+      }
+      // Worlds are large and rewritten in place, so instead of copying them
+      // into every snapshot they go to the incremental store
+      HashSet<File> linkExclude = new HashSet<File>(exclude);
+      linkExclude.add(GameUpdater.savesDir);
+      // Only what the updater replaces as a whole is linked
+      HashSet<File> linkDirs = new HashSet<File>();
+      Collections.addAll(linkDirs, binDir, modsDir, coremodsDir, libsDir, resourceDir);
+      File snapshot = SnapshotBackup.snapshot(modpackDir, linkExclude, linkDirs, backupDir, date, this);
+      if (SettingsUtil.isWorldBackup() && savesDir.exists()) {
+        HashSet<File> worldsOnly = new HashSet<File>();
+        for (File file : modpackDir.listFiles()) {
+          if (!file.equals(GameUpdater.savesDir)) {
+            worldsOnly.add(file);
+          }
+        }
+        BackupStore.snapshot(modpackDir, worldsOnly, backupDir, date, this);
+      }
+      stateChanged(String.format("Backed up previous build to '%s'...", snapshot.getName()), 100);
+    } else {
+      if (new File(GameUpdater.backupDir, date + BackupStore.MANIFEST_SUFFIX).exists()) {
+        return;
+      }
+      stateChanged("Backing up previous build...", 0);
+      File manifest = BackupStore.snapshot(modpackDir, exclude, backupDir, date, this);
+      stateChanged(String.format("Backed up previous build to '%s'...", manifest.getName()), 100);
+    }
+    BackupRetention.schedule(backupDir);
 
-      if (modsDir.exists())
-        FileUtils.deleteDirectory(modsDir);
+    if (modsDir.exists())
+      FileUtils.deleteDirectory(modsDir);
 
-      if (libsDir.exists())
-        FileUtils.deleteDirectory(libsDir);
+    if (libsDir.exists())
+      FileUtils.deleteDirectory(libsDir);
 
-      if (coremodsDir.exists())
-        FileUtils.deleteDirectory(coremodsDir);
+    if (coremodsDir.exists())
+      FileUtils.deleteDirectory(coremodsDir);
 
-      if (modconfigsDir.exists())
-        FileUtils.deleteDirectory(modconfigsDir);
+    if (modconfigsDir.exists())
+      FileUtils.deleteDirectory(modconfigsDir);
 
-      if (resourceDir.exists())
-        FileUtils.deleteDirectory(resourceDir);
-    }
+    if (resourceDir.exists())
+      FileUtils.deleteDirectory(resourceDir);
   }
 
   @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -593,78 +488,21 @@ public File run() throws Exception {
   }
 
   public void addFilesToExistingZip(File zipFile, Set<ClassFile> files, String rootDir, boolean progressBar) throws IOException {
-    File tempFile = File.createTempFile(zipFile.getName(), null, zipFile.getParentFile());
-    tempFile.delete();
-
-    copy(zipFile, tempFile);
-    boolean renameOk = zipFile.renameTo(tempFile);
-    if (!renameOk) {
-      if (tempFile.exists()) {
-        zipFile.delete();
-      } else {
-        throw new RuntimeException("could not rename the file " + zipFile.getAbsolutePath() + " to " + tempFile.getAbsolutePath());
-      }
-    }
-    byte[] buf = new byte[1024];
-
-    float progress = 0F;
-    float progressStep = 0F;
-    if (progressBar) {
-      JarFile jarFile = new JarFile(tempFile);
-      int jarSize = jarFile.size();
-      jarFile.close();
-      progressStep = 100F / (files.size() + jarSize);
-    }
-
-    ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(tempFile)));
-    ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
-    ZipEntry entry = zin.getNextEntry();
-    while (entry != null) {
-      String name = entry.getName();
-      ClassFile entryFile = new ClassFile(name);
-      if (!name.contains("META-INF") && !files.contains(entryFile)) {
-        out.putNextEntry(new ZipEntry(name));
-        int len;
-        while ((len = zin.read(buf)) > 0) {
-          out.write(buf, 0, len);
-        }
-      }
-      entry = zin.getNextEntry();
+    addFilesToExistingZip(zipFile, files, rootDir, progressBar, Deflater.DEFAULT_COMPRESSION);
+  }
 
-      progress += progressStep;
-      if (progressBar) {
-        stateChanged("Merging Modpack Files Into Minecraft Jar...", progress);
-      }
-    }
-    zin.close();
+  public void addFilesToExistingZip(File zipFile, Set<ClassFile> files, String rootDir, boolean progressBar, int level) throws IOException {
+    Map<String, File> additions = new LinkedHashMap<String, File>();
     for (ClassFile file : files) {
-      try {
-        InputStream in = new FileInputStream(file.getFile());
-
-        String path = file.getPath();
-        path = path.replace(rootDir, "");
-        path = path.replaceAll("\\\\", "/");
-        out.putNextEntry(new ZipEntry(path));
-
-        int len;
-        while ((len = in.read(buf)) > 0) {
-          out.write(buf, 0, len);
-        }
-
-        progress += progressStep;
-        if (progressBar) {
-          stateChanged("Merging Modpack Files Into Minecraft Jar...", progress);
-        }
-
-        out.closeEntry();
-        in.close();
-      } catch (IOException e) {
-      }
+      String path = file.getPath();
+      path = path.replace(rootDir, "");
+      path = path.replaceAll("\\\\", "/");
+      additions.put(path, file.getFile());
     }
-
-    out.close();
+    ZipRewriter.merge(zipFile, additions, level, progressBar ? this : null, "Merging Modpack Files Into Minecraft Jar...");
   }
 
+
   public Set<ClassFile> getFiles(File dir, String rootDir) {
     return getFiles(dir, new HashSet<File>(), rootDir);
   }
@@ -672,7 +510,7 @@ public Set<ClassFile> getFiles(File dir, String rootDir) {
   public Set<ClassFile> getFiles(File dir, Set<File> exclude, String rootDir) {
     HashSet<ClassFile> result = new HashSet<ClassFile>();
     for (File file : dir.listFiles()) {
-      if (!exclude.contains(dir)) {
+      if (!exclude.contains(file)) {
         if (file.isDirectory()) {
           result.addAll(this.getFiles(file, exclude, rootDir));
           continue;
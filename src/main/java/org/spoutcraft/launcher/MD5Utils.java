@@ -4,7 +4,9 @@
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -17,16 +19,13 @@ public class MD5Utils {
   private static final File                CHECKSUM_FILE = new File(GameUpdater.workDir, CHECKSUM_MD5);
   private static boolean                   updated;
   private static final Map<String, String> md5Map        = new HashMap<String, String>();
-
-  // In-memory cache for MD5 hashes: key is file path + lastModified + length
-  private static final Map<String, String> md5FileCache = new HashMap<>();
+  private static final Map<String, Long>   sizeMap       = new HashMap<String, Long>();
 
   public static String getMD5(File file) {
     if (file == null || !file.exists()) {
       return null;
     }
-    String cacheKey = file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
-    String cached = md5FileCache.get(cacheKey);
+    String cached = FileHashIndex.get(file);
     if (cached != null) {
       return cached;
     }
@@ -35,7 +34,7 @@ public static String getMD5(File file) {
       stream = new FileInputStream(file);
       String md5Hex = DigestUtils.md5Hex(stream);
       stream.close();
-      md5FileCache.put(cacheKey, md5Hex);
+      FileHashIndex.put(file, md5Hex);
       return md5Hex;
     } catch (FileNotFoundException e) {
       e.printStackTrace();
@@ -111,13 +110,21 @@ public static void updateMD5Cache() {
 
   private static void parseChecksumFile() throws FileNotFoundException {
     md5Map.clear();
+    sizeMap.clear();
     Scanner scanner = new Scanner(CHECKSUM_FILE);
     Scanner scannerDelimited = scanner.useDelimiter("\\||\n");
     while (scannerDelimited.hasNext()) {
       String md5 = scannerDelimited.next().toLowerCase();
       String path = scannerDelimited.next().replace("\r", "").replace('/', '\\');
       md5Map.put(path, md5);
-      scannerDelimited.nextLine();
+      // An optional third column holds the size of the file
+      String rest = scannerDelimited.hasNextLine() ? scannerDelimited.nextLine().trim() : "";
+      if (rest.startsWith("|")) {
+        try {
+          sizeMap.put(path, Long.parseLong(rest.substring(1).trim()));
+        } catch (NumberFormatException ignore) {
+        }
+      }
     }
     scanner.close();
   }
@@ -158,4 +165,27 @@ public static String getMD5FromList(String md5Path) {
     md5Path = md5Path.replace('/', '\\');
     return (!md5Map.containsKey(md5Path)) ? null : md5Map.get(md5Path);
   }
+
+  /**
+   * @return size of the file from the checksum list, or -1 if it is not listed
+   */
+  public static long getSizeFromList(String md5Path) {
+    Long size = sizeMap.get(md5Path.replace('/', '\\'));
+    return size == null ? -1 : size;
+  }
+
+  /**
+   * @return all paths in the checksum list that start with prefix, with '/'
+   *         as separator
+   */
+  public static List<String> getPathsFromList(String prefix) {
+    prefix = prefix.replace('/', '\\');
+    List<String> paths = new ArrayList<String>();
+    for (String path : md5Map.keySet()) {
+      if (path.startsWith(prefix)) {
+        paths.add(path.replace('\\', '/'));
+      }
+    }
+    return paths;
+  }
 }
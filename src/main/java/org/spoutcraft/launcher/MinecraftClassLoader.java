@@ -18,27 +18,34 @@
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.CodeSigner;
 import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 public class MinecraftClassLoader extends URLClassLoader {
-  private final HashMap<String, Class<?>> loadedClasses = new HashMap<String, Class<?>>(1000);
-  private File                            spoutcraft    = null;
-  private File                            custom        = null;
-  private final File[]                    libraries;
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  private final Map<String, Class<?>> loadedClasses = new ConcurrentHashMap<String, Class<?>>(1000);
+  // class name -> jar that provides it, first jar in search order wins
+  private final Map<String, IndexedJar> classIndex  = new HashMap<String, IndexedJar>(8192);
+  private final List<IndexedJar>        jars        = new ArrayList<IndexedJar>();
 
   public MinecraftClassLoader(URL[] urls, ClassLoader parent, File spoutcraft, File custom, File[] libraries) {
     super(urls, parent);
-    this.spoutcraft = spoutcraft;
-    this.libraries = libraries;
-    this.custom = custom;
     for (File f : libraries) {
       try {
         this.addURL(f.toURI().toURL());
@@ -51,6 +58,45 @@ public MinecraftClassLoader(URL[] urls, ClassLoader parent, File spoutcraft, Fil
     } catch (MalformedURLException e) {
       e.printStackTrace();
     }
+
+    // modpack.jar must win over minecraft.jar, then custom.jar, then the
+    // libraries in the order they were given
+    index(spoutcraft);
+    index(custom);
+    for (File file : libraries) {
+      index(file);
+    }
+  }
+
+  private void index(File file) {
+    for (IndexedJar jar : jars) {
+      if (jar.file.equals(file)) {
+        return;
+      }
+    }
+    if (!file.canRead()) {
+      Util.log("Not allowed to open '%s'!.", file.getName());
+      return;
+    }
+    try {
+      IndexedJar jar = new IndexedJar(file);
+      jars.add(jar);
+      Enumeration<JarEntry> entries = jar.jar.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+        String entryName = entry.getName();
+        if (entry.isDirectory() || !entryName.endsWith(".class")) {
+          continue;
+        }
+        String className = entryName.substring(0, entryName.length() - 6).replace('/', '.');
+        if (!classIndex.containsKey(className)) {
+          classIndex.put(className, jar);
+        }
+      }
+    } catch (IOException e) {
+      Util.log("Error opening '%s'.", file.getName());
+      e.printStackTrace();
+    }
   }
 
   // NOTE: VerifyException is due to multiple classes of the same type in
@@ -63,51 +109,86 @@ protected Class<?> findClass(String name) throws ClassNotFoundException {
       return result;
     }
 
-    result = findClassInjar(name, spoutcraft);
-    if (result != null) {
-      return result;
-    }
-
-    result = findClassInjar(name, custom);
-    if (result != null) {
-      return result;
-    }
-
-    for (File file : libraries) {
-      result = findClassInjar(name, file);
-      if (result != null) {
-        return result;
+    IndexedJar jar = classIndex.get(name);
+    if (jar != null) {
+      synchronized (getClassLoadingLock(name)) {
+        result = loadedClasses.get(name);
+        if (result != null) {
+          return result;
+        }
+        result = findClassInjar(name, jar);
+        if (result != null) {
+          return result;
+        }
       }
     }
     return super.findClass(name);
   }
 
-  private Class<?> findClassInjar(String name, File file) throws ClassNotFoundException {
+  private Class<?> findClassInjar(String name, IndexedJar jar) {
     try {
-      if (!file.canRead()) {
-        Util.log("Not allowed to open '%s'!.", file.getName());
+      JarEntry entry = jar.jar.getJarEntry(name.replace('.', '/') + ".class");
+      if (entry == null) {
+        return null;
       }
-      JarFile jar = new JarFile(file);
-      JarEntry entry = jar.getJarEntry(name.replace(".", "/") + ".class");
-      if (entry != null) {
-        InputStream is = jar.getInputStream(entry);
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        int next = is.read();
-        while (-1 != next) {
-          byteStream.write(next);
-          next = is.read();
+      byte[] classByte = readEntry(jar.jar, entry);
+      Class<?> result = defineClass(name, classByte, 0, classByte.length, jar.codeSource);
+      loadedClasses.put(name, result);
+      return result;
+    } catch (IOException e) {
+      Util.log("Error reading '%s' from '%s'.", name, jar.file.getName());
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  private static byte[] readEntry(JarFile jar, JarEntry entry) throws IOException {
+    InputStream is = jar.getInputStream(entry);
+    try {
+      long size = entry.getSize();
+      if (size >= 0 && size <= Integer.MAX_VALUE) {
+        byte[] classByte = new byte[(int) size];
+        int offset = 0;
+        while (offset < classByte.length) {
+          int read = is.read(classByte, offset, classByte.length - offset);
+          if (read < 0) {
+            throw new IOException("Unexpected end of " + entry.getName());
+          }
+          offset += read;
         }
+        return classByte;
+      }
 
-        byte classByte[] = byteStream.toByteArray();
-        Class<?> result = defineClass(name, classByte, 0, classByte.length, new CodeSource(file.toURI().toURL(), (CodeSigner[]) null));
-        loadedClasses.put(name, result);
-        return result;
+      // Size is unknown, fall back to reading in chunks
+      ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        byteStream.write(buffer, 0, read);
       }
-      jar.close();
-    } catch (Exception e) {
-      Util.log("Errpr opening '%s'.", file.getName());
-      e.printStackTrace();
+      return byteStream.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (IndexedJar jar : jars) {
+      Util.closeQuietly(jar.jar);
+    }
+    super.close();
+  }
+
+  private static class IndexedJar {
+    private final File       file;
+    private final JarFile    jar;
+    private final CodeSource codeSource;
+
+    private IndexedJar(File file) throws IOException {
+      this.file = file;
+      this.jar = new JarFile(file);
+      this.codeSource = new CodeSource(file.toURI().toURL(), (CodeSigner[]) null);
     }
-    return null;
   }
 }
@@ -2,13 +2,22 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.spoutcraft.diff.JBPatch;
+import org.spoutcraft.diff.JarDelta;
 import org.spoutcraft.launcher.async.Download;
 import org.spoutcraft.launcher.async.DownloadListener;
 
 public class MinecraftDownloadUtils {
 
+  private static final int PATCH_DOWNLOAD_THREADS = 2;
+
   public static void downloadMinecraft(String user, String output, ModpackBuild build, DownloadListener listener) throws IOException {
     String requiredMinecraftVersion = build.getMinecraftVersion();
 
@@ -17,23 +26,19 @@ public static void downloadMinecraft(String user, String output, ModpackBuild bu
 
     int tries = 3;
     File outputFile = null;
+    Download download = new Download(build.getMinecraftURL(user), output);
+    download.setListener(listener);
     while (tries > 0) {
       Util.logi("Starting download of minecraft, with %s trie(s) remaining", tries);
       tries--;
-      Download download = new Download(build.getMinecraftURL(user), output);
-      download.setListener(listener);
       download.run();
       if (!download.isSuccess()) {
-        if (download.getOutFile() != null) {
-          download.getOutFile().delete();
-        }
         System.err.println("Download of minecraft failed!");
         listener.stateChanged("Download Failed, retries remaining: " + tries, 0F);
       } else {
-        String resultMD5 = MD5Utils.getMD5(download.getOutFile());
+        String resultMD5 = download.getMD5();
 
         String minecraftVersion = MD5Utils.getMinecraftMD5(resultMD5);
-        GameUpdater.copy(download.getOutFile(), new File(GameUpdater.cacheDir, "minecraft_" + minecraftVersion + ".jar"));
         if (minecraftVersion != null) {
           Util.log("Downloaded 'minecraft.jar' matches MD5 of version '%s'.", minecraftVersion);
         } else {
@@ -41,11 +46,14 @@ public static void downloadMinecraft(String user, String output, ModpackBuild bu
           continue;
         }
 
+        File cachedFile = new File(GameUpdater.cacheDir, "minecraft_" + minecraftVersion + ".jar");
+        ContentStore.store(download.getOutFile(), resultMD5);
+        ContentStore.materialize(resultMD5, cachedFile);
         if (!minecraftVersion.equals(requiredMinecraftVersion)) {
           if (downloadMinecraftVersion(requiredMinecraftVersion, listener))
             return;
         } else {
-          outputFile = download.getOutFile();
+          outputFile = cachedFile;
           break;
         }
       }
@@ -53,46 +61,100 @@ public static void downloadMinecraft(String user, String output, ModpackBuild bu
     if (outputFile == null) {
       throw new IOException("Failed to download minecraft");
     }
-    GameUpdater.copy(outputFile, new File(GameUpdater.cacheDir, "minecraft_" + requiredMinecraftVersion + ".jar"));
   }
 
+  /**
+   * Builds the required version from cached jars through the cheapest chain of
+   * patches, if that is smaller than a full download. The patches are all
+   * downloaded in the background while earlier ones are applied.
+   * 
+   * @return true if the required version is now cached
+   */
   public static boolean downloadMinecraftVersion(String requiredMinecraftVersion, DownloadListener listener) {
-    String latestCached = MinecraftYML.getLatestCachedMinecraft();
-    if (latestCached == null || MinecraftYML.compareVersions(requiredMinecraftVersion, latestCached) > 0)
+    PatchPlanner.Plan plan = PatchPlanner.plan(requiredMinecraftVersion);
+    Util.logi("%s", plan);
+    if (plan.isFullDownload()) {
       return false;
-
-    for (String cachedVersion : MinecraftYML.getCachedMinecraftVersions()) {
-      if (MD5Utils.getMD5FromList("Patches/Minecraft/minecraft_" + cachedVersion + "-" + requiredMinecraftVersion + ".patch") != null)
-        return downgradeFrom(cachedVersion, requiredMinecraftVersion, listener);
     }
-    return false;
-  }
 
-  private static boolean downgradeFrom(String cachedVersion, String requiredMinecraftVersion, DownloadListener listener) {
-    File patch = new File(GameUpdater.tempDir, "mc.patch");
-    String patchURL = MirrorUtils.getMirrorUrl("Patches/Minecraft/minecraft_" + cachedVersion + "-" + requiredMinecraftVersion + ".patch", null);
-    File cachedFile = new File(GameUpdater.cacheDir, "minecraft_" + cachedVersion + ".jar");
-    File requiredFile = new File(GameUpdater.cacheDir, "minecraft_" + requiredMinecraftVersion + ".jar");
-    Download patchDownload;
+    List<PatchPlanner.Step> steps = plan.getSteps();
+    if (steps.isEmpty()) {
+      return true;
+    }
+    ExecutorService downloads = Executors.newFixedThreadPool(Math.min(steps.size(), PATCH_DOWNLOAD_THREADS));
     try {
-      patchDownload = DownloadUtils.downloadFile(patchURL, patch.getPath(), null, null, listener);
-      if (patchDownload.isSuccess()) {
-        File patchedMinecraft = new File(GameUpdater.tempDir, "patched_minecraft.jar");
-        patchedMinecraft.delete();
-        listener.stateChanged(String.format("Patching Minecraft to '%s'.", requiredMinecraftVersion), 0F);
-        JBPatch.bspatch(cachedFile, patchedMinecraft, patch);
-        listener.stateChanged(String.format("Patched Minecraft to '%s'.", requiredMinecraftVersion), 100F);
-        String currentMinecraftMD5 = MD5Utils.getMD5(FileType.minecraft, requiredMinecraftVersion);
-        String resultMD5 = MD5Utils.getMD5(patchedMinecraft);
-        Util.log("Comapring new jar md5 '%s' to stored md5 '%s'.", resultMD5, currentMinecraftMD5);
+      List<Future<File>> patches = new ArrayList<Future<File>>();
+      for (final PatchPlanner.Step step : steps) {
+        patches.add(downloads.submit(new Callable<File>() {
+          public File call() throws IOException {
+            return downloadPatch(step);
+          }
+        }));
+      }
+      downloads.shutdown();
 
-        if (currentMinecraftMD5.equals(resultMD5)) {
-          GameUpdater.copy(patchedMinecraft, requiredFile);
-          patchedMinecraft.delete();
-          return true;
+      File current = new File(GameUpdater.cacheDir, "minecraft_" + plan.getSource() + ".jar");
+      for (int i = 0; i < steps.size(); i++) {
+        PatchPlanner.Step step = steps.get(i);
+        File patch = patches.get(i).get();
+        if (patch == null) {
+          return false;
+        }
+        try {
+          File patched = applyPatch(current, patch, step.getTo(), listener);
+          if (patched == null) {
+            return false;
+          }
+          current = patched;
+        } finally {
+          patch.delete();
         }
       }
-    } catch (IOException ignored) {}
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      downloads.shutdownNow();
+    }
     return false;
   }
+
+  private static File downloadPatch(PatchPlanner.Step step) throws IOException {
+    File patch = new File(GameUpdater.tempDir, "mc_" + step.getFrom() + "-" + step.getTo() + ".patch");
+    String patchURL = MirrorUtils.getMirrorUrl(step.getPath(), null);
+    if (patchURL == null) {
+      return null;
+    }
+    Download download = DownloadUtils.downloadFile(patchURL, patch.getPath(), null, MD5Utils.getMD5FromList(step.getPath()), null);
+    return download != null && download.isSuccess() && patch.exists() ? patch : null;
+  }
+
+  /**
+   * Applies one patch of a chain and caches the result as
+   * minecraft_&lt;version&gt;.jar, so later chains can start from it.
+   * 
+   * @return the cached jar, or null if the result did not match its MD5
+   */
+  private static File applyPatch(File cachedFile, File patch, String version, DownloadListener listener) throws IOException {
+    File patchedMinecraft = new File(GameUpdater.tempDir, "patched_minecraft.jar");
+    patchedMinecraft.delete();
+    listener.stateChanged(String.format("Patching Minecraft to '%s'.", version), 0F);
+    String resultMD5 = JarDelta.apply(cachedFile, patchedMinecraft, patch);
+    listener.stateChanged(String.format("Patched Minecraft to '%s'.", version), 100F);
+    String minecraftMD5 = MD5Utils.getMD5(FileType.minecraft, version);
+    Util.log("Comapring new jar md5 '%s' to stored md5 '%s'.", resultMD5, minecraftMD5);
+
+    if (!resultMD5.equalsIgnoreCase(minecraftMD5)) {
+      patchedMinecraft.delete();
+      return null;
+    }
+    File requiredFile = new File(GameUpdater.cacheDir, "minecraft_" + version + ".jar");
+    ContentStore.store(patchedMinecraft, resultMD5);
+    ContentStore.materialize(resultMD5, requiredFile);
+    return requiredFile;
+  }
 }
@@ -65,9 +65,10 @@ public static Set<String> getMinecraftVersions() {
   public static Set<String> getCachedMinecraftVersions() {
     Set<String> minecraftVersions = new HashSet<>();
     for (String filename : GameUpdater.cacheDir.list()) {
-      if (!filename.startsWith("minecraft_"))
+      // Partial and temporary files have more after the .jar
+      if (!filename.startsWith("minecraft_") || !filename.endsWith(".jar"))
         continue;
-      minecraftVersions.add(filename.split("_|.jar")[1]);
+      minecraftVersions.add(filename.substring("minecraft_".length(), filename.length() - ".jar".length()));
     }
     return minecraftVersions;
   }
@@ -0,0 +1,204 @@
+package org.spoutcraft.launcher;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how healthy each mirror is. Every mirror is probed once, in
+ * parallel, and after that the latency and throughput of real downloads are
+ * folded into an exponentially weighted moving average. A mirror that fails
+ * several times in a row is skipped for a while (circuit breaker) and tried
+ * again afterwards.
+ */
+public class MirrorRegistry {
+
+  private static final int                       PROBE_TIMEOUT      = 5000;
+  private static final double                    ALPHA              = 0.3;
+  private static final int                       FAILURE_THRESHOLD  = 3;
+  private static final long                      OPEN_INTERVAL      = TimeUnit.MINUTES.toMillis(1);
+  // Size used to weigh latency against throughput when scoring a mirror
+  private static final double                    TYPICAL_BYTES      = 1024 * 1024;
+  private static final double                    DEFAULT_THROUGHPUT = 512 * 1024;
+
+  private static final Map<String, MirrorStats>  stats              = new ConcurrentHashMap<String, MirrorStats>();
+
+  /**
+   * Picks the mirror with the best score out of the given mirrors and their
+   * weights, probing any mirror that has not been seen yet.
+   * 
+   * @return the mirror, or null if every mirror is unavailable
+   */
+  public static String chooseMirror(Map<String, Integer> mirrors) {
+    List<String> ranked = rankMirrors(mirrors);
+    return ranked.isEmpty() ? null : ranked.get(0);
+  }
+
+  /**
+   * Orders the available mirrors out of the given mirrors and their weights
+   * from best to worst score, probing any mirror that has not been seen yet.
+   * 
+   * @return the mirrors, empty if every mirror is unavailable
+   */
+  public static List<String> rankMirrors(Map<String, Integer> mirrors) {
+    return rankMirrors(mirrors, System.currentTimeMillis());
+  }
+
+  static List<String> rankMirrors(Map<String, Integer> mirrors, long now) {
+    probe(mirrors);
+    final Map<String, Double> scores = new HashMap<String, Double>();
+    for (Map.Entry<String, Integer> mirror : mirrors.entrySet()) {
+      MirrorStats mirrorStats = stats.get(mirror.getKey());
+      if (mirrorStats != null && mirrorStats.isAvailable(now)) {
+        scores.put(mirror.getKey(), mirror.getValue() / mirrorStats.getExpectedTime());
+      }
+    }
+    List<String> ranked = new ArrayList<String>(scores.keySet());
+    Collections.sort(ranked, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return Double.compare(scores.get(b), scores.get(a));
+      }
+    });
+    return ranked;
+  }
+
+  private static synchronized void probe(Map<String, Integer> mirrors) {
+    List<String> unknown = new ArrayList<String>();
+    for (String mirror : mirrors.keySet()) {
+      if (!stats.containsKey(mirror)) {
+        unknown.add(mirror);
+      }
+    }
+    if (unknown.isEmpty()) {
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(unknown.size());
+    try {
+      List<Callable<Void>> probes = new ArrayList<Callable<Void>>();
+      for (final String mirror : unknown) {
+        probes.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            MirrorStats mirrorStats = new MirrorStats();
+            long start = System.currentTimeMillis();
+            if (isMirrorUp(getBaseUrl(mirror))) {
+              mirrorStats.recordLatency(System.currentTimeMillis() - start);
+            } else {
+              Util.log("Mirror '%s' did not respond to probe", mirror);
+              mirrorStats.recordFailure(System.currentTimeMillis());
+            }
+            stats.put(mirror, mirrorStats);
+            return null;
+          }
+        });
+      }
+      executor.invokeAll(probes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the URL files on mirror are found under, with a trailing slash
+   */
+  public static String getBaseUrl(String mirror) {
+    return (mirror.startsWith("http://") || mirror.startsWith("https://") ? mirror : "https://" + mirror) + "/";
+  }
+
+  private static boolean isMirrorUp(String url) {
+    try {
+      HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+      conn.setConnectTimeout(PROBE_TIMEOUT);
+      conn.setReadTimeout(PROBE_TIMEOUT);
+      conn.setInstanceFollowRedirects(false);
+      conn.setRequestMethod("HEAD");
+      int responseCode = conn.getResponseCode();
+      conn.disconnect();
+      // Any answer short of a server error means the mirror is reachable
+      return responseCode > 0 && responseCode < 500;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  public static void recordSuccess(String url, long bytes, long millis) {
+    MirrorStats mirrorStats = getStats(url);
+    if (mirrorStats != null) {
+      mirrorStats.recordTransfer(bytes, millis);
+    }
+  }
+
+  public static void recordFailure(String url) {
+    MirrorStats mirrorStats = getStats(url);
+    if (mirrorStats != null) {
+      mirrorStats.recordFailure(System.currentTimeMillis());
+    }
+  }
+
+  private static MirrorStats getStats(String url) {
+    if (url == null) {
+      return null;
+    }
+    for (Map.Entry<String, MirrorStats> entry : stats.entrySet()) {
+      if (url.startsWith(getBaseUrl(entry.getKey())) || url.startsWith("http://" + entry.getKey() + "/")) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static class MirrorStats {
+    private double latency             = -1;
+    private double throughput          = -1;
+    private int    consecutiveFailures = 0;
+    private long   openUntil           = 0;
+
+    private synchronized void recordLatency(long millis) {
+      latency = latency < 0 ? millis : ALPHA * millis + (1 - ALPHA) * latency;
+      consecutiveFailures = 0;
+    }
+
+    private synchronized void recordTransfer(long bytes, long millis) {
+      consecutiveFailures = 0;
+      openUntil = 0;
+      if (bytes <= 0) {
+        return;
+      }
+      double bytesPerMilli = bytes / (double) Math.max(millis, 1);
+      throughput = throughput < 0 ? bytesPerMilli : ALPHA * bytesPerMilli + (1 - ALPHA) * throughput;
+    }
+
+    private synchronized void recordFailure(long now) {
+      consecutiveFailures++;
+      if (consecutiveFailures >= FAILURE_THRESHOLD || latency < 0) {
+        openUntil = now + OPEN_INTERVAL;
+      }
+    }
+
+    private synchronized boolean isAvailable(long now) {
+      // Once the interval has passed the mirror is given another chance
+      return now >= openUntil;
+    }
+
+    private synchronized double getExpectedTime() {
+      double bytesPerMilli = throughput > 0 ? throughput : DEFAULT_THROUGHPUT / 1000;
+      // Until it answers again, a mirror that never answered or kept failing
+      // is scored as if it took the whole probe timeout
+      double expectedLatency = latency < 0 || consecutiveFailures >= FAILURE_THRESHOLD ? PROBE_TIMEOUT : Math.max(latency, 1);
+      return expectedLatency + TYPICAL_BYTES / bytesPerMilli;
+    }
+  }
+}
@@ -4,11 +4,9 @@
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -17,10 +15,11 @@
 
 public class MirrorUtils {
 
-  public static final String[] MIRRORS_URL = { "https://mirror.technicpack.net/Technic/mirrors.yml" };
-  public static File           mirrorsYML  = new File(GameUpdater.workDir, "mirrors.yml");
-  private static boolean       updated     = false;
-  private static final Random  rand        = new Random();
+  public static final String[]             MIRRORS_URL = { "https://mirror.technicpack.net/Technic/mirrors.yml" };
+  public static File                       mirrorsYML  = new File(GameUpdater.workDir, "mirrors.yml");
+  private static boolean                   updated     = false;
+  // Fallback URL given for each mirror path, for when every mirror failed it
+  private static final Map<String, String> fallbacks   = new ConcurrentHashMap<String, String>();
 
   public static String getMirrorUrl(String mirrorURI, String fallbackUrl, DownloadListener listener) {
 
@@ -28,44 +27,12 @@ public static String getMirrorUrl(String mirrorURI, String fallbackUrl, Download
       if (Main.isOffline)
         return null;
 
-      Map<String, Integer> mirrors = getMirrors();
-      Set<Entry<String, Integer>> set = mirrors.entrySet();
-
-      int total = 0;
-      Iterator<Entry<String, Integer>> iterator = set.iterator();
-      while (iterator.hasNext()) {
-        total += iterator.next().getValue();
+      if (fallbackUrl != null) {
+        fallbacks.put(mirrorURI, fallbackUrl);
       }
-
-      int random = rand.nextInt(total);
-
-      int count = 0;
-      boolean isFinished = false;
-      iterator = set.iterator();
-      Entry<String, Integer> current = null;
-      while (!isFinished) {
-        while (iterator.hasNext()) {
-          current = iterator.next();
-          count += current.getValue();
-          String url = current.getKey();
-          if (count > random) {
-            String mirror = "https://" + url + "/" + mirrorURI;
-            if (isAddressReachable(mirror)) {
-              return mirror;
-            } else {
-              break;
-            }
-          }
-        }
-
-        if (set.size() == 1) {
-          return null;
-        } else {
-          total -= current.getValue();
-          random = rand.nextInt(total);
-          set.remove(current);
-          iterator = set.iterator();
-        }
+      String mirror = MirrorRegistry.chooseMirror(getMirrors());
+      if (mirror != null) {
+        return MirrorRegistry.getBaseUrl(mirror) + mirrorURI;
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -78,6 +45,39 @@ public static String getMirrorUrl(String mirrorURI, String fallbackUrl) {
     return getMirrorUrl(mirrorURI, fallbackUrl, null);
   }
 
+  /**
+   * Finds where else the file at url can be downloaded from, after the URLs
+   * in tried failed. These are the other mirrors from best to worst, and
+   * after them the fallback URL the file was first asked for with.
+   *
+   * @return the next URL, or null if url is not on a mirror or none is left
+   */
+  public static String getAlternativeUrl(String url, Set<String> tried) {
+    Map<String, Integer> mirrors = getMirrors();
+    if (mirrors == null || Main.isOffline) {
+      return null;
+    }
+    String mirrorURI = null;
+    for (String mirror : mirrors.keySet()) {
+      String baseUrl = MirrorRegistry.getBaseUrl(mirror);
+      if (url.startsWith(baseUrl)) {
+        mirrorURI = url.substring(baseUrl.length());
+        break;
+      }
+    }
+    if (mirrorURI == null) {
+      return null;
+    }
+    for (String mirror : MirrorRegistry.rankMirrors(mirrors)) {
+      String mirrorUrl = MirrorRegistry.getBaseUrl(mirror) + mirrorURI;
+      if (!tried.contains(mirrorUrl)) {
+        return mirrorUrl;
+      }
+    }
+    String fallbackUrl = fallbacks.get(mirrorURI);
+    return fallbackUrl == null || tried.contains(fallbackUrl) ? null : fallbackUrl;
+  }
+
   @SuppressWarnings("unchecked")
   public static Map<String, Integer> getMirrors() {
     Configuration config = getMirrorsYML();
@@ -125,6 +125,14 @@ public static Configuration getMirrorsYML() {
     return config;
   }
 
+  /**
+   * Reads the mirrors from file instead of the downloaded mirrors.yml.
+   */
+  static void useMirrorsYML(File file) {
+    mirrorsYML = file;
+    updated = true;
+  }
+
   public static void updateMirrorsYMLCache() {
     if (updated) {
       return;
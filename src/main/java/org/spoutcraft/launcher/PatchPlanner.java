@@ -0,0 +1,288 @@
+package org.spoutcraft.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Plans how to get a minecraft jar from what is already cached. The patches in
+ * the checksum list and the cached minecraft_*.jar files form a graph, and the
+ * chain of patches with the fewest bytes to download is compared against a
+ * full download of the client jar.
+ * <p>
+ * Only versions with a jar MD5 in minecraft.yml take part, so the result of
+ * every step can be verified, and a cached jar is only used as a source once
+ * its MD5 matches.
+ */
+public class PatchPlanner {
+
+  private static final String PATCH_DIR    = "Patches/Minecraft/";
+  private static final String PATCH_PREFIX = PATCH_DIR + "minecraft_";
+  private static final String PATCH_SUFFIX = ".patch";
+
+  public static Plan plan(String targetVersion) {
+    long fullSize = -1;
+    try {
+      VersionManifest.Version version = VersionManifest.getVersion(targetVersion);
+      if (version != null) {
+        fullSize = version.getClientSize();
+      }
+    } catch (IOException e) {
+      Util.log("Could not look up the size of minecraft '%s': %s", targetVersion, e.getMessage());
+    }
+
+    Map<String, String> md5s = getMinecraftMD5s();
+    Map<String, List<Step>> graph = new HashMap<String, List<Step>>();
+    for (String path : MD5Utils.getPathsFromList(PATCH_PREFIX)) {
+      if (!path.endsWith(PATCH_SUFFIX)) {
+        continue;
+      }
+      Step step = parseStep(path, md5s);
+      if (step == null) {
+        continue;
+      }
+      List<Step> edges = graph.get(step.from);
+      if (edges == null) {
+        edges = new ArrayList<Step>();
+        graph.put(step.from, edges);
+      }
+      edges.add(step);
+    }
+
+    // Dijkstra from every cached version at once
+    Set<String> cached = new HashSet<String>();
+    for (String version : MinecraftYML.getCachedMinecraftVersions()) {
+      File jar = new File(GameUpdater.cacheDir, "minecraft_" + version + ".jar");
+      String md5 = md5s.get(version);
+      if (md5 != null && md5.equalsIgnoreCase(MD5Utils.getMD5(jar))) {
+        cached.add(version);
+      } else {
+        Util.log("Cached '%s' does not match its MD5, not patching from it", jar.getName());
+      }
+    }
+    Map<String, Long> distance = new HashMap<String, Long>();
+    Map<String, Step> via = new HashMap<String, Step>();
+    PriorityQueue<Node> queue = new PriorityQueue<Node>();
+    for (String version : cached) {
+      distance.put(version, 0L);
+      queue.add(new Node(version, 0));
+    }
+    while (!queue.isEmpty()) {
+      Node node = queue.poll();
+      if (node.distance > distance.get(node.version)) {
+        continue;
+      }
+      if (node.version.equals(targetVersion)) {
+        break;
+      }
+      List<Step> edges = graph.get(node.version);
+      if (edges == null) {
+        continue;
+      }
+      for (Step step : edges) {
+        long size = step.getSize();
+        if (size < 0) {
+          continue;
+        }
+        long next = node.distance + size;
+        Long known = distance.get(step.to);
+        if (known == null || next < known) {
+          distance.put(step.to, next);
+          via.put(step.to, step);
+          queue.add(new Node(step.to, next));
+        }
+      }
+    }
+
+    Long patchSize = distance.get(targetVersion);
+    if (patchSize == null || (fullSize >= 0 && fullSize <= patchSize)) {
+      return new Plan(targetVersion, null, Collections.<Step> emptyList(), patchSize == null ? -1 : patchSize, fullSize);
+    }
+    List<Step> steps = new ArrayList<Step>();
+    String version = targetVersion;
+    while (via.containsKey(version) && !cached.contains(version)) {
+      Step step = via.get(version);
+      steps.add(0, step);
+      version = step.from;
+    }
+    return new Plan(targetVersion, version, steps, patchSize, fullSize);
+  }
+
+  /**
+   * Reads the versions out of a patch path, minecraft_&lt;from&gt;-&lt;to&gt;.patch.
+   * Version ids may contain '-' themselves, so the split is the one where
+   * both sides are versions with a known MD5.
+   *
+   * @return the step, or null if no such split exists
+   */
+  private static Step parseStep(String path, Map<String, String> md5s) {
+    String versions = path.substring(PATCH_PREFIX.length(), path.length() - PATCH_SUFFIX.length());
+    for (int split = versions.indexOf('-'); split > 0; split = versions.indexOf('-', split + 1)) {
+      String from = versions.substring(0, split);
+      String to = versions.substring(split + 1);
+      if (md5s.containsKey(from) && md5s.containsKey(to)) {
+        return new Step(from, to, path);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the minecraft jar MD5 of every version in minecraft.yml
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, String> getMinecraftMD5s() {
+    Map<String, String> md5s = new HashMap<String, String>();
+    Object builds = MinecraftYML.getMinecraftYML().getProperty("versions");
+    if (!(builds instanceof Map)) {
+      return md5s;
+    }
+    for (Map.Entry<String, Object> build : ((Map<String, Object>) builds).entrySet()) {
+      if (build.getValue() instanceof Map) {
+        Object md5 = ((Map<String, Object>) build.getValue()).get(FileType.minecraft.name());
+        if (md5 != null) {
+          md5s.put(build.getKey(), md5.toString());
+        }
+      }
+    }
+    return md5s;
+  }
+
+  /**
+   * Asks the mirror for the size of a patch that has no size in the checksum
+   * list.
+   */
+  private static long fetchSize(String path) {
+    String url = MirrorUtils.getMirrorUrl(path, null);
+    if (url == null) {
+      return -1;
+    }
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setRequestMethod("HEAD");
+      connection.setConnectTimeout(5000);
+      connection.setReadTimeout(5000);
+      if (connection.getResponseCode() / 100 != 2) {
+        return -1;
+      }
+      return connection.getContentLength();
+    } catch (IOException e) {
+      return -1;
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  public static class Plan {
+    private final String     target;
+    private final String     source;
+    private final List<Step> steps;
+    private final long       patchSize;
+    private final long       fullSize;
+
+    private Plan(String target, String source, List<Step> steps, long patchSize, long fullSize) {
+      this.target = target;
+      this.source = source;
+      this.steps = Collections.unmodifiableList(steps);
+      this.patchSize = patchSize;
+      this.fullSize = fullSize;
+    }
+
+    public boolean isFullDownload() {
+      return source == null;
+    }
+
+    /**
+     * @return the cached version the chain starts from, or null for a full
+     *         download
+     */
+    public String getSource() {
+      return source;
+    }
+
+    public List<Step> getSteps() {
+      return steps;
+    }
+
+    @Override
+    public String toString() {
+      String full = fullSize < 0 ? "unknown size" : fullSize + " bytes";
+      if (isFullDownload()) {
+        String patches = patchSize < 0 ? "no patch chain" : "patch chain of " + patchSize + " bytes";
+        return String.format("Minecraft '%s': full download (%s, %s)", target, full, patches);
+      }
+      StringBuilder chain = new StringBuilder(source);
+      for (Step step : steps) {
+        chain.append(" -> ").append(step.to);
+      }
+      return String.format("Minecraft '%s': patching %s (%d patch(es), %d bytes, full download %s)", target, chain, steps.size(), patchSize, full);
+    }
+  }
+
+  public static class Step {
+    private final String from;
+    private final String to;
+    private final String path;
+    private long         size = -2;
+
+    private Step(String from, String to, String path) {
+      this.from = from;
+      this.to = to;
+      this.path = path;
+    }
+
+    public String getFrom() {
+      return from;
+    }
+
+    public String getTo() {
+      return to;
+    }
+
+    /**
+     * @return path of the patch on the mirrors
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * @return size of the patch in bytes, or -1 if it is unknown
+     */
+    public long getSize() {
+      if (size == -2) {
+        size = MD5Utils.getSizeFromList(path);
+        if (size < 0) {
+          size = fetchSize(path);
+        }
+      }
+      return size;
+    }
+  }
+
+  private static class Node implements Comparable<Node> {
+    private final String version;
+    private final long   distance;
+
+    private Node(String version, long distance) {
+      this.version = version;
+      this.distance = distance;
+    }
+
+    public int compareTo(Node other) {
+      return distance < other.distance ? -1 : distance == other.distance ? 0 : 1;
+    }
+  }
+}
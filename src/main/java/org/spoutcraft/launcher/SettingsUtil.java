@@ -19,6 +19,11 @@ public static void reload() {
   public static void init() {
     isLatestLWJGL();
     isWorldBackup();
+    getBackupMode();
+    getBackupCompressionLevel();
+    getBackupCount();
+    getBackupMaxAge();
+    getBackupBudget();
     getLoginTries();
     isRecommendedBuild();
     isDevelopmentBuild();
@@ -41,6 +46,63 @@ public static void setWorldBackup(boolean value) {
     setProperty("worldbackup", value);
   }
 
+  /**
+   * @return how backups are taken before an update, "zip" for a full zip,
+   *         "incremental" for a snapshot in the {@link BackupStore} or
+   *         "snapshot" for a {@link SnapshotBackup} of hard links
+   */
+  public static String getBackupMode() {
+    return getProperty("backupmode", "incremental");
+  }
+
+  public static void setBackupMode(String value) {
+    setProperty("backupmode", value);
+  }
+
+  /**
+   * @return deflate level for zip backups, from 1 (fastest) to 9 (smallest)
+   */
+  public static int getBackupCompressionLevel() {
+    return Math.max(1, Math.min(9, getProperty("backupcompression", 6)));
+  }
+
+  public static void setBackupCompressionLevel(int value) {
+    setProperty("backupcompression", value);
+  }
+
+  /**
+   * @return number of backups kept, 0 for no limit
+   */
+  public static int getBackupCount() {
+    return Math.max(0, getProperty("backupcount", 5));
+  }
+
+  public static void setBackupCount(int value) {
+    setProperty("backupcount", value);
+  }
+
+  /**
+   * @return days a backup is kept, 0 for no limit
+   */
+  public static int getBackupMaxAge() {
+    return Math.max(0, getProperty("backupmaxage", 30));
+  }
+
+  public static void setBackupMaxAge(int value) {
+    setProperty("backupmaxage", value);
+  }
+
+  /**
+   * @return megabytes of disk all backups together may use, 0 for no limit
+   */
+  public static int getBackupBudget() {
+    return Math.max(0, getProperty("backupbudget", 2048));
+  }
+
+  public static void setBackupBudget(int value) {
+    setProperty("backupbudget", value);
+  }
+
   public static int getLoginTries() {
     return isProperty("retryLogins", true) ? 3 : 1;
   }
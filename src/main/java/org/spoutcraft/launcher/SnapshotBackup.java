@@ -0,0 +1,125 @@
+package org.spoutcraft.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+import org.spoutcraft.launcher.async.DownloadListener;
+
+/**
+ * Backups made of hard links. A snapshot is a directory tree under the backup
+ * directory whose files in the directories the updater owns share their data
+ * with the modpack, so backing those up costs a link per file however large
+ * the files are.
+ * <p>
+ * The updater never writes into an existing file there, it always replaces it
+ * (see {@link FileUtils#moveAtomically(File, File)}), which leaves the
+ * snapshot's link pointing at the old data. Everywhere else the game and its
+ * mods append to logs and rewrite configs in place, which would change a
+ * linked snapshot as well, so those files are copied.
+ */
+public class SnapshotBackup {
+
+  public static final String SNAPSHOT_SUFFIX = "-snapshot";
+
+  /**
+   * Takes a snapshot of every file below sourceDir, except those below the
+   * excluded directories, into backupDir/name + {@link #SNAPSHOT_SUFFIX}.
+   *
+   * @param linkDirs
+   *          directories below sourceDir whose files are only ever replaced,
+   *          never written in place, and may be linked
+   * @return the snapshot directory
+   */
+  public static File snapshot(File sourceDir, Set<File> exclude, Set<File> linkDirs, File backupDir, String name, DownloadListener listener) throws IOException {
+    File snapshot = new File(backupDir, name + SNAPSHOT_SUFFIX);
+    File tempDir = new File(backupDir, snapshot.getName() + ".tmp");
+    FileUtils.deleteDirectory(tempDir);
+    Stats stats = new Stats();
+    try {
+      if (listener != null) {
+        listener.stateChanged(String.format("Taking snapshot '%s'...", snapshot.getName()), -1);
+      }
+      link(sourceDir, tempDir, exclude, linkDirs, false, stats);
+      // A snapshot only gets its final name once it is complete
+      Files.move(tempDir.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtils.deleteQuietly(tempDir);
+    }
+    Util.logi("Took snapshot '%s', linked %d files and copied %d files (%d bytes)", snapshot.getName(), stats.linked, stats.copied, stats.bytesCopied);
+    // Linked files cost nothing until the updater replaces them in the modpack,
+    // which leaves them to the snapshot, so they are charged in full
+    BackupRetention.record(snapshot, stats.bytesCopied + stats.bytesLinked);
+    return snapshot;
+  }
+
+  /**
+   * Copies the files of a snapshot back to destination, replacing files that
+   * exist there. The snapshot itself is left as it is.
+   */
+  public static void restore(File snapshot, File destination) throws IOException {
+    File[] files = snapshot.listFiles();
+    if (files == null) {
+      throw new IOException("Snapshot '" + snapshot + "' does not exist");
+    }
+    for (File file : files) {
+      File target = new File(destination, file.getName());
+      if (file.isDirectory()) {
+        restore(file, target);
+      } else {
+        FileUtils.copy(file, target);
+        target.setLastModified(file.lastModified());
+      }
+    }
+  }
+
+  /**
+   * @return true if file is a complete snapshot directory
+   */
+  public static boolean isSnapshot(File file) {
+    return file.isDirectory() && file.getName().endsWith(SNAPSHOT_SUFFIX);
+  }
+
+  private static void link(File source, File target, Set<File> exclude, Set<File> linkDirs, boolean linkable, Stats stats) throws IOException {
+    File[] files = source.listFiles();
+    if (files == null) {
+      return;
+    }
+    if (!target.isDirectory() && !target.mkdirs()) {
+      throw new IOException("Could not create directory " + target);
+    }
+    for (File file : files) {
+      if (exclude.contains(file)) {
+        continue;
+      }
+      File copy = new File(target, file.getName());
+      if (file.isDirectory()) {
+        link(file, copy, exclude, linkDirs, linkable || linkDirs.contains(file), stats);
+      } else if (file.isFile()) {
+        long size = file.length();
+        if (linkable) {
+          try {
+            Files.createLink(copy.toPath(), file.toPath());
+            stats.linked++;
+            stats.bytesLinked += size;
+            continue;
+          } catch (UnsupportedOperationException e) {
+          } catch (IOException e) {
+          }
+        }
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        stats.copied++;
+        stats.bytesCopied += size;
+      }
+    }
+  }
+
+  private static class Stats {
+    private int  linked      = 0;
+    private int  copied      = 0;
+    private long bytesCopied = 0;
+    private long bytesLinked = 0;
+  }
+}
@@ -0,0 +1,289 @@
+package org.spoutcraft.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Mojang version metadata. The manifest and each version document are fetched
+ * at most once per session and kept in the cache directory; version documents
+ * never change for a given id, the manifest is revalidated with its ETag once
+ * it is older than {@link #MANIFEST_TTL}, or sooner when it does not list a
+ * version that is asked for.
+ */
+public class VersionManifest {
+
+  public static final String                MANIFEST_URL = "https://launchermeta.mojang.com/mc/game/version_manifest.json";
+  private static final long                 MANIFEST_TTL = TimeUnit.HOURS.toMillis(24);
+  private static final File                 versionsDir  = new File(GameUpdater.cacheDir, "versions");
+  private static final File                 manifestFile = new File(versionsDir, "version_manifest.json");
+  private static final File                 manifestEtag = new File(versionsDir, "version_manifest.etag");
+
+  private static JsonObject                 manifest     = null;
+  private static boolean                    revalidated  = false;
+  private static final Map<String, Version> versions     = new HashMap<String, Version>();
+
+  public static synchronized Version getVersion(String minecraftVersion) throws IOException {
+    Version version = versions.get(minecraftVersion);
+    if (version != null) {
+      return version;
+    }
+
+    File versionFile = new File(versionsDir, minecraftVersion + ".json");
+    JsonObject versionJson = null;
+    if (versionFile.exists()) {
+      try {
+        versionJson = readJson(versionFile);
+      } catch (Exception e) {
+        Util.log("Cached version file '%s' is unreadable, downloading it again", versionFile.getPath());
+        versionFile.delete();
+      }
+    }
+
+    if (versionJson == null) {
+      String versionJsonUrl = getVersionUrl(getManifest(false), minecraftVersion);
+      if (versionJsonUrl == null && !revalidated) {
+        // A cached manifest can predate a version released since
+        Util.log("Version '%s' is not in the cached manifest, checking for a newer one", minecraftVersion);
+        versionJsonUrl = getVersionUrl(getManifest(true), minecraftVersion);
+      }
+      if (versionJsonUrl == null) {
+        throw new IOException("Version not found in manifest: " + minecraftVersion);
+      }
+      fetch(versionJsonUrl, versionFile, null);
+      versionJson = readJson(versionFile);
+    }
+
+    version = new Version(minecraftVersion, versionJson);
+    versions.put(minecraftVersion, version);
+    return version;
+  }
+
+  private static String getVersionUrl(JsonObject manifest, String minecraftVersion) {
+    for (JsonElement element : manifest.getAsJsonArray("versions")) {
+      JsonObject v = element.getAsJsonObject();
+      if (v.get("id").getAsString().equals(minecraftVersion)) {
+        return v.get("url").getAsString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param revalidate
+   *          to check for a newer manifest even if the cached one is fresh,
+   *          done at most once per session
+   */
+  private static JsonObject getManifest(boolean revalidate) throws IOException {
+    if (manifest != null && (!revalidate || revalidated)) {
+      return manifest;
+    }
+    boolean fresh = manifestFile.exists() && System.currentTimeMillis() - manifestFile.lastModified() < MANIFEST_TTL;
+    if (!fresh || revalidate) {
+      revalidated = true;
+      try {
+        fetch(MANIFEST_URL, manifestFile, manifestEtag);
+      } catch (IOException e) {
+        if (!manifestFile.exists()) {
+          throw e;
+        }
+        Util.log("Could not refresh '%s', using the cached copy", MANIFEST_URL);
+      }
+    }
+    manifest = readJson(manifestFile);
+    return manifest;
+  }
+
+  private static void fetch(String url, File output, File etagFile) throws IOException {
+    versionsDir.mkdirs();
+    Util.logi("Downloading '%s'", url);
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setConnectTimeout(10000);
+    conn.setReadTimeout(10000);
+    String etag = null;
+    if (etagFile != null && etagFile.exists() && output.exists()) {
+      etag = new String(Files.readAllBytes(etagFile.toPath()), StandardCharsets.UTF_8).trim();
+      conn.setRequestProperty("If-None-Match", etag);
+    }
+
+    int responseCode = conn.getResponseCode();
+    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      output.setLastModified(System.currentTimeMillis());
+      conn.disconnect();
+      return;
+    }
+    if (responseCode != HttpURLConnection.HTTP_OK) {
+      conn.disconnect();
+      throw new IOException(String.format("Unexpected response %d from '%s'", responseCode, url));
+    }
+
+    File tempFile = new File(versionsDir, output.getName() + ".tmp");
+    InputStream in = conn.getInputStream();
+    OutputStream out = new FileOutputStream(tempFile);
+    try {
+      GameUpdater.copy(in, out);
+    } finally {
+      Util.closeQuietly(out);
+      Util.closeQuietly(in);
+    }
+    Files.move(tempFile.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    String newEtag = conn.getHeaderField("ETag");
+    if (etagFile != null) {
+      if (newEtag != null) {
+        Files.write(etagFile.toPath(), newEtag.getBytes(StandardCharsets.UTF_8));
+      } else {
+        etagFile.delete();
+      }
+    }
+  }
+
+  private static JsonObject readJson(File file) throws IOException {
+    InputStreamReader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    try {
+      return new JsonParser().parse(reader).getAsJsonObject();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the key Mojang uses for this platform in the "natives" section of
+   * a library, or null if the platform has no natives.
+   */
+  public static String getNativeOsKey() {
+    String os = System.getProperty("os.name").toLowerCase();
+    if (os.contains("win")) {
+      return "windows";
+    } else if (os.contains("mac") || os.contains("osx")) {
+      return "osx";
+    } else if (os.contains("nux") || os.contains("nix")) {
+      return "linux";
+    }
+    return null;
+  }
+
+  public static class Version {
+    private final String        id;
+    private final String        clientUrl;
+    private final long          clientSize;
+    private final List<Library> libraries = new ArrayList<Library>();
+
+    private Version(String id, JsonObject json) {
+      this.id = id;
+      JsonObject client = json.getAsJsonObject("downloads").getAsJsonObject("client");
+      this.clientUrl = client.get("url").getAsString();
+      this.clientSize = client.has("size") ? client.get("size").getAsLong() : -1;
+      for (JsonElement element : json.getAsJsonArray("libraries")) {
+        libraries.add(new Library(element.getAsJsonObject()));
+      }
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getClientUrl() {
+      return clientUrl;
+    }
+
+    /**
+     * @return size of the client jar in bytes, or -1 if unknown
+     */
+    public long getClientSize() {
+      return clientSize;
+    }
+
+    public List<Library> getLibraries() {
+      return Collections.unmodifiableList(libraries);
+    }
+
+    public List<String> getArtifactUrls(String nameFilter) {
+      List<String> urls = new ArrayList<String>();
+      for (Library library : libraries) {
+        if (library.getArtifactUrl() != null && library.getName().contains(nameFilter)) {
+          urls.add(library.getArtifactUrl());
+        }
+      }
+      return urls;
+    }
+
+    public List<String> getNativeUrls(String osKey) {
+      List<String> urls = new ArrayList<String>();
+      for (Library library : libraries) {
+        String url = library.getNativeUrl(osKey);
+        if (url != null) {
+          urls.add(url);
+        }
+      }
+      return urls;
+    }
+  }
+
+  public static class Library {
+    private final String              name;
+    private final String              artifactUrl;
+    private final Map<String, String> natives        = new HashMap<String, String>();
+    private final Map<String, String> classifierUrls = new HashMap<String, String>();
+
+    private Library(JsonObject json) {
+      this.name = json.get("name").getAsString();
+      JsonObject downloads = json.getAsJsonObject("downloads");
+      String artifact = null;
+      if (downloads != null) {
+        JsonObject artifactJson = downloads.getAsJsonObject("artifact");
+        if (artifactJson != null && artifactJson.has("url")) {
+          artifact = artifactJson.get("url").getAsString();
+        }
+        JsonObject classifiers = downloads.getAsJsonObject("classifiers");
+        if (classifiers != null) {
+          for (Map.Entry<String, JsonElement> entry : classifiers.entrySet()) {
+            JsonObject classifier = entry.getValue().getAsJsonObject();
+            if (classifier.has("url")) {
+              classifierUrls.put(entry.getKey(), classifier.get("url").getAsString());
+            }
+          }
+        }
+      }
+      this.artifactUrl = artifact;
+      JsonObject nativesJson = json.getAsJsonObject("natives");
+      if (nativesJson != null) {
+        for (Map.Entry<String, JsonElement> entry : nativesJson.entrySet()) {
+          natives.put(entry.getKey(), entry.getValue().getAsString());
+        }
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getArtifactUrl() {
+      return artifactUrl;
+    }
+
+    public String getNativeUrl(String osKey) {
+      String classifier = natives.get(osKey);
+      return classifier == null ? null : classifierUrls.get(classifier);
+    }
+  }
+}
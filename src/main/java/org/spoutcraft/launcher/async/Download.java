@@ -17,33 +17,74 @@
 package org.spoutcraft.launcher.async;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.codec.binary.Hex;
 import org.spoutcraft.launcher.Util;
 
 /**
  * Downloads stuff asynchronously. In fact, it's a modified version of
  * StackOverflow sample ;)
+ * <p>
+ * Running the same Download again after a failure resumes the partial file
+ * with a Range request when the server supports it. Large files are fetched
+ * in segments over parallel connections. The MD5 of the file is computed while
+ * it downloads, see {@link #getMD5()}. A tee, see {@link #setTee(OutputStream)},
+ * receives every byte in order as it arrives.
  */
 public class Download implements Runnable {
 
-  private static final long TIMEOUT    = 30000;
-  private final URL         url;
-  private long              size       = -1;
-  private long              downloaded = 0;
-  private final String      outPath;
-  private DownloadListener  listener;
-  private boolean           success    = false;
-  private File              outFile    = null;
-  private final String      name;
+  private static final long   TIMEOUT           = 30000;
+  private static final long   SEGMENT_THRESHOLD = 4 * 1024 * 1024;
+  private static final int    SEGMENT_COUNT     = 4;
+  private static final int    SEGMENT_RETRIES   = 3;
+  private static final int    BUFFER_SIZE       = 64 * 1024;
+  private static final int    NOT_SATISFIABLE   = 416;
+
+  private final URL           url;
+  private volatile long       size              = -1;
+  private final AtomicLong    downloaded        = new AtomicLong();
+  private final String        outPath;
+  private DownloadListener    listener;
+  private boolean             success           = false;
+  private volatile int        responseCode      = -1;
+  private String              md5               = null;
+  private File                outFile           = null;
+  private final String        name;
+
+  // Resume state, kept between runs of this download
+  private String              validator         = null;
+  private boolean             acceptsRanges     = false;
+  private boolean             partial           = false;
+  private Segment[]           segments          = null;
+  private volatile boolean    rangeRejected     = false;
+  private volatile boolean    stalled           = false;
+  private MessageDigest       digest            = null;
+  private OutputStream        tee               = null;
+  private final Set<Closeable> openStreams      = ConcurrentHashMap.newKeySet();
 
   public Download(String url, String outPath) throws MalformedURLException {
     this.url = new URL(url);
@@ -52,118 +93,269 @@ public Download(String url, String outPath) throws MalformedURLException {
   }
 
   public float getProgress() {
-    return ((float) downloaded / size) * 100;
+    return ((float) downloaded.get() / size) * 100;
   }
 
   @Override
   public void run() {
+    success = false;
+    md5 = null;
+    stalled = false;
+    responseCode = -1;
+    outFile = new File(outPath);
+    ProgressDispatcher.watch(this, TIMEOUT);
     try {
-      URLConnection conn = url.openConnection();
-      conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/534.30 (KHTML, like Gecko) Chrome/12.0.742.100 Safari/534.30");
-      InputStream in = getConnectionInputStream(conn);
-
-      size = conn.getContentLength();
-      outFile = new File(outPath);
-      outFile.delete();
-
-      final ReadableByteChannel rbc = Channels.newChannel(in);
-      final FileOutputStream fos = new FileOutputStream(outFile);
-
-      stateChanged();
-
-      // Create a thread to monitor progress
-      final Thread instance = Thread.currentThread();
-      Thread progress = new Thread() {
-
-        long last = System.currentTimeMillis();
-
-        @Override
-        public void run() {
-          while (!this.isInterrupted()) {
-
-            long diff = outFile.length() - downloaded;
-            downloaded = outFile.length();
-
-            if (diff == 0) { // nothing downloaded
-              if ((System.currentTimeMillis() - last) > TIMEOUT) { // waited
-                // too
-                // long
-                if (listener != null) { // alert ui
-                  listener.stateChanged("Download Failed", getProgress());
-                }
-                try {
-                  rbc.close();
-                  instance.interrupt();
-                } catch (IOException e) {
-                  e.printStackTrace();
-                }
-                return;
-              }
-            } else {
-              last = System.currentTimeMillis();
-            }
-
-            stateChanged();
-            try {
-              sleep(100);
-            } catch (InterruptedException ignore) {
-              break;
-            }
-          }
-        }
-      };
-      progress.start();
-
-      fos.getChannel().transferFrom(rbc, 0, size > 0 ? size : Integer.MAX_VALUE);
-      in.close();
-      rbc.close();
-      fos.close();
-      progress.interrupt();
-      success = size > 0 ? (size == outFile.length()) : true;
+      if (partial && segments != null && outFile.length() == size) {
+        runSegments(null);
+      } else {
+        runSingle();
+      }
+      success = size > 0 ? (size == downloaded.get() && size == outFile.length()) : true;
+      if (success) {
+        md5 = segments == null ? Hex.encodeHexString(digest.digest()) : hashFile();
+      }
     } catch (IOException ioe) {
       ioe.printStackTrace();
       Util.log(String.format("Cannot open '%s' for download.", url));
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      ProgressDispatcher.unwatch(this);
+      closeOpenStreams();
+    }
+    partial = !success && !rangeRejected && outFile.exists() && outFile.length() > 0;
+    if (!partial) {
+      segments = null;
+      rangeRejected = false;
     }
   }
 
-  protected InputStream getConnectionInputStream(final URLConnection urlconnection) throws Exception {
-    final InputStream[] is = new InputStream[1];
+  private void runSingle() throws IOException, InterruptedException, ExecutionException {
+    long offset = 0;
+    if (partial && acceptsRanges && validator != null && outFile.length() == downloaded.get()) {
+      offset = outFile.length();
+    }
 
-    for (int j = 0; (j < 3) && (is[0] == null); j++) {
-      Thread stream = new Thread() {
+    URLConnection conn = openConnection(offset, -1);
+    responseCode = getResponseCode(conn);
+    if (offset > 0 && responseCode == NOT_SATISFIABLE) {
+      // The file on the server is shorter than the partial one
+      Util.log("Server cannot resume '%s' from byte %d, restarting", url, offset);
+      ((HttpURLConnection) conn).disconnect();
+      offset = 0;
+      conn = openConnection(0, -1);
+      responseCode = getResponseCode(conn);
+    }
+    InputStream in = new BufferedInputStream(conn.getInputStream());
+    openStreams.add(in);
+    if (offset > 0 && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+      Util.log("Server ignored resume request for '%s', restarting", url);
+      offset = 0;
+    }
 
-        @Override
-        public void run() {
-          try {
-            is[0] = urlconnection.getInputStream();
-          } catch (IOException ignore) {
-          }
+    digest = newDigest();
+    if (offset > 0) {
+      Util.logi("Resuming '%s' from byte %d", url, offset);
+      size = offset + conn.getContentLengthLong();
+      updateDigest(digest, offset);
+    } else {
+      size = conn.getContentLengthLong();
+      validator = getValidator(conn);
+      acceptsRanges = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+      downloaded.set(0);
+      outFile.delete();
+    }
+
+    stateChanged();
+
+    // Segments arrive out of order, so they cannot feed a tee
+    if (offset == 0 && tee == null && acceptsRanges && validator != null && size >= SEGMENT_THRESHOLD) {
+      long segmentSize = (size + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+      segments = new Segment[SEGMENT_COUNT];
+      for (int i = 0; i < SEGMENT_COUNT; i++) {
+        segments[i] = new Segment(i * segmentSize, Math.min(size, (i + 1) * segmentSize));
+      }
+      RandomAccessFile file = new RandomAccessFile(outFile, "rw");
+      try {
+        file.setLength(size);
+      } finally {
+        file.close();
+      }
+      runSegments(in);
+      return;
+    }
+
+    segments = null;
+    RandomAccessFile file = new RandomAccessFile(outFile, "rw");
+    try {
+      FileChannel channel = file.getChannel();
+      channel.truncate(offset);
+      transfer(in, channel, new AtomicLong(offset), Long.MAX_VALUE, digest, tee);
+    } finally {
+      file.close();
+      in.close();
+      openStreams.remove(in);
+    }
+  }
+
+  /**
+   * Fetches all unfinished segments in parallel. The first segment may reuse
+   * the stream of the connection that discovered the file size.
+   */
+  private void runSegments(final InputStream firstStream) throws IOException, InterruptedException, ExecutionException {
+    final RandomAccessFile file = new RandomAccessFile(outFile, "rw");
+    ExecutorService executor = Executors.newFixedThreadPool(segments.length);
+    try {
+      final FileChannel channel = file.getChannel();
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < segments.length; i++) {
+        final Segment segment = segments[i];
+        final InputStream initial = i == 0 ? firstStream : null;
+        if (initial == null && segment.isComplete()) {
+          continue;
         }
-      };
-      stream.start();
-      int iterationCount = 0;
-      while ((is[0] == null) && (iterationCount++ < 5)) {
-        try {
-          stream.join(1000L);
-        } catch (InterruptedException ignore) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() {
+            return segment.fetch(channel, initial);
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        if (!result.get()) {
+          throw new IOException("Segmented download of '" + url + "' did not complete");
         }
       }
-      if (is[0] != null) {
-        continue;
+    } finally {
+      executor.shutdownNow();
+      file.close();
+    }
+  }
+
+  /**
+   * Copies the stream into the channel at the given position until the end of
+   * the stream or the end offset, advancing the position as bytes are written
+   * so a failed transfer can be resumed from where it stopped. Bytes go to the
+   * tee only once they are in the file, so a resumed transfer continues the
+   * tee where it stopped.
+   */
+  private void transfer(InputStream in, FileChannel channel, AtomicLong position, long end, MessageDigest digest, OutputStream tee) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    while (position.get() < end) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position.get()));
+      if (read < 0) {
+        break;
+      }
+      if (digest != null) {
+        digest.update(buffer, 0, read);
       }
-      try {
-        stream.interrupt();
-        stream.join();
-      } catch (InterruptedException ignore) {
+      wrapped.clear().limit(read);
+      long offset = position.get();
+      while (wrapped.hasRemaining()) {
+        offset += channel.write(wrapped, offset);
+      }
+      position.set(offset);
+      downloaded.addAndGet(read);
+      if (tee != null) {
+        tee.write(buffer, 0, read);
       }
     }
+  }
 
-    if (is[0] == null) {
-      throw new Exception("Unable to download file");
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
     }
-    return new BufferedInputStream(is[0]);
+  }
+
+  /**
+   * Feeds the first length bytes of the output file into the digest, used
+   * when resuming a partial file.
+   */
+  private void updateDigest(MessageDigest digest, long length) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(outFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      long position = 0;
+      while (position < length) {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        buffer.flip();
+        digest.update(buffer);
+        position += read;
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  private String hashFile() throws IOException {
+    MessageDigest fileDigest = newDigest();
+    updateDigest(fileDigest, outFile.length());
+    return Hex.encodeHexString(fileDigest.digest());
+  }
+
+  private URLConnection openConnection(long from, long to) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setConnectTimeout((int) TIMEOUT);
+    conn.setReadTimeout((int) TIMEOUT);
+    conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/534.30 (KHTML, like Gecko) Chrome/12.0.742.100 Safari/534.30");
+    if (from > 0 || to >= 0) {
+      conn.setRequestProperty("Range", "bytes=" + from + "-" + (to >= 0 ? Long.toString(to) : ""));
+      if (validator != null) {
+        conn.setRequestProperty("If-Range", validator);
+      }
+    }
+    return conn;
+  }
+
+  private static int getResponseCode(URLConnection conn) throws IOException {
+    return conn instanceof HttpURLConnection ? ((HttpURLConnection) conn).getResponseCode() : HttpURLConnection.HTTP_OK;
+  }
+
+  private static String getValidator(URLConnection conn) {
+    String etag = conn.getHeaderField("ETag");
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return conn.getHeaderField("Last-Modified");
+  }
+
+  private void closeStream(Closeable stream) {
+    openStreams.remove(stream);
+    Util.closeQuietly(stream);
+  }
+
+  private void closeOpenStreams() {
+    for (Closeable stream : openStreams) {
+      closeStream(stream);
+    }
+  }
+
+  /**
+   * Called by the {@link ProgressDispatcher} when no bytes arrived for longer
+   * than the timeout. Closing the streams makes the blocked reads fail.
+   */
+  void stall() {
+    if (listener != null) {
+      listener.stateChanged("Download Failed", getProgress());
+    }
+    stalled = true;
+    closeOpenStreams();
+  }
+
+  /**
+   * Called by the {@link ProgressDispatcher} when the download made progress
+   * since the last tick.
+   */
+  void publishProgress() {
+    stateChanged();
   }
 
   private void stateChanged() {
@@ -176,11 +368,110 @@ public void setListener(DownloadListener listener) {
     this.listener = listener;
   }
 
+  /**
+   * Sends every byte received to tee as well, in file order. Downloads with a
+   * tee use a single connection.
+   */
+  public void setTee(OutputStream tee) {
+    this.tee = tee;
+  }
+
   public boolean isSuccess() {
     return success;
   }
 
+  /**
+   * Marks a finished download as failed, because its file turned out to be
+   * wrong. A later run starts the file over.
+   */
+  public void reject() {
+    success = false;
+    partial = false;
+    segments = null;
+  }
+
+  /**
+   * @return HTTP status of the last run, or -1 if the server never answered
+   */
+  public int getResponseCode() {
+    return responseCode;
+  }
+
   public File getOutFile() {
     return outFile;
   }
+
+  public String getUrl() {
+    return url.toString();
+  }
+
+  public long getDownloaded() {
+    return downloaded.get();
+  }
+
+  /**
+   * @return size of the file, or -1 if it is not known yet
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return MD5 of the downloaded file, or null if the download did not
+   *         succeed
+   */
+  public String getMD5() {
+    return md5;
+  }
+
+  private class Segment {
+    private final long       start;
+    private final long       end;
+    private final AtomicLong position;
+
+    private Segment(long start, long end) {
+      this.start = start;
+      this.end = end;
+      this.position = new AtomicLong(start);
+    }
+
+    private boolean isComplete() {
+      return position.get() >= end;
+    }
+
+    private boolean fetch(FileChannel channel, InputStream initial) {
+      InputStream in = initial;
+      int failures = 0;
+      while (!isComplete()) {
+        try {
+          if (in == null) {
+            URLConnection conn = openConnection(position.get(), end - 1);
+            if (getResponseCode(conn) != HttpURLConnection.HTTP_PARTIAL) {
+              rangeRejected = true;
+              Util.log("Server did not honour range request for '%s'", url);
+              return false;
+            }
+            in = new BufferedInputStream(conn.getInputStream());
+            openStreams.add(in);
+          }
+          transfer(in, channel, position, end, null, null);
+          if (!isComplete()) {
+            throw new IOException(String.format("Segment %d-%d of '%s' ended early", start, end, url));
+          }
+        } catch (IOException e) {
+          if (++failures > SEGMENT_RETRIES || stalled || Thread.currentThread().isInterrupted()) {
+            Util.log("Segment %d-%d of '%s' failed: %s", start, end, url, e.getMessage());
+            return false;
+          }
+          Util.log("Retrying segment %d-%d of '%s' from byte %d", start, end, url, position.get());
+        } finally {
+          if (in != null) {
+            closeStream(in);
+            in = null;
+          }
+        }
+      }
+      return true;
+    }
+  }
 }
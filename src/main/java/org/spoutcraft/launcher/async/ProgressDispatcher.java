@@ -0,0 +1,132 @@
+package org.spoutcraft.launcher.async;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the progress of all running downloads from a single timer thread.
+ * Downloads only count the bytes they copy; once per tick the dispatcher
+ * reports every download whose count changed, and fails downloads that have
+ * not received anything for longer than their timeout.
+ */
+public class ProgressDispatcher {
+
+  private static final long                     TICK           = 100;
+
+  private static final Map<Download, Watch>     watched        = new ConcurrentHashMap<Download, Watch>();
+  private static final ScheduledExecutorService timer          = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                                                                 public Thread newThread(Runnable r) {
+                                                                   Thread thread = new Thread(r, "Download progress");
+                                                                   thread.setDaemon(true);
+                                                                   return thread;
+                                                                 }
+                                                               });
+  private static ScheduledFuture<?>             ticker         = null;
+  private static long                           completedBytes = 0;
+
+  static synchronized void watch(Download download, long timeout) {
+    watched.put(download, new Watch(download.getDownloaded(), timeout));
+    if (ticker == null) {
+      ticker = timer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          tick();
+        }
+      }, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  static synchronized void unwatch(Download download) {
+    Watch watch = watched.remove(download);
+    if (watch != null) {
+      completedBytes += Math.max(0, download.getDownloaded() - watch.startDownloaded);
+    }
+    if (watched.isEmpty() && ticker != null) {
+      ticker.cancel(false);
+      ticker = null;
+    }
+  }
+
+  /**
+   * @return number of downloads currently being watched
+   */
+  public static int getActiveDownloads() {
+    return watched.size();
+  }
+
+  /**
+   * @return bytes received by all downloads since the launcher started
+   */
+  public static synchronized long getTransferredBytes() {
+    long total = completedBytes;
+    for (Map.Entry<Download, Watch> entry : watched.entrySet()) {
+      total += Math.max(0, entry.getKey().getDownloaded() - entry.getValue().startDownloaded);
+    }
+    return total;
+  }
+
+  /**
+   * @return bytes received so far by the running downloads of known size
+   */
+  public static long getActiveDownloaded() {
+    long total = 0;
+    for (Download download : watched.keySet()) {
+      if (download.getSize() > 0) {
+        total += download.getDownloaded();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return combined size of the running downloads of known size
+   */
+  public static long getActiveSize() {
+    long total = 0;
+    for (Download download : watched.keySet()) {
+      if (download.getSize() > 0) {
+        total += download.getSize();
+      }
+    }
+    return total;
+  }
+
+  private static void tick() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Download, Watch> entry : watched.entrySet()) {
+      Download download = entry.getKey();
+      Watch watch = entry.getValue();
+      try {
+        long current = download.getDownloaded();
+        if (current != watch.lastDownloaded) {
+          watch.lastDownloaded = current;
+          watch.lastChange = now;
+          download.publishProgress();
+        } else if (now - watch.lastChange > watch.timeout) {
+          unwatch(download);
+          download.stall();
+        }
+      } catch (RuntimeException e) {
+        // A failing listener must not stop progress for the other downloads
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static class Watch {
+    private final long startDownloaded;
+    private long       lastDownloaded;
+    private long       lastChange = System.currentTimeMillis();
+    private final long timeout;
+
+    private Watch(long lastDownloaded, long timeout) {
+      this.startDownloaded = lastDownloaded;
+      this.lastDownloaded = lastDownloaded;
+      this.timeout = timeout;
+    }
+  }
+}
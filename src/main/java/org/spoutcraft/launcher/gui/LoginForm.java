@@ -36,12 +36,14 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -107,6 +109,7 @@ public class LoginForm extends JFrame implements ActionListener, DownloadListene
   private final List<JButton>              loginSkin2Image;
   private TumblerFeedParsingWorker         tumblerFeed;
   public final JProgressBar                progressBar;
+  private final ProgressBus                progressBus;
   HashMap<String, UserPasswordInformation> usernames        = new HashMap<String, UserPasswordInformation>();
   public boolean                           mcUpdate         = false;
   public boolean                           spoutUpdate      = false;
@@ -219,6 +222,7 @@ public LoginForm() {
     progressBar.setVisible(false);
     progressBar.setStringPainted(true);
     progressBar.setOpaque(true);
+    progressBus = new ProgressBus(progressBar, workingDir);
 
     JLabel purchaseAccount = new HyperlinkJLabel("<html><u>Need a minecraft account?</u></html>", "http://www.minecraft.net/register.jsp");
     purchaseAccount.setHorizontalAlignment(SwingConstants.RIGHT);
@@ -389,6 +393,15 @@ protected Object doInBackground() throws Exception {
 
       @Override
       protected void done() {
+        try {
+          get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          Util.log("Could not load the settings of modpack '%s'", ModPackListYML.currentModPack);
+          e.getCause().printStackTrace();
+          JOptionPane.showMessageDialog(getParent(), "Failed to load the modpack settings!\n" + e.getCause().getMessage());
+        }
         if (options == null) {
           options = new OptionDialog();
           options.modPackList = ModPackListYML.modpackMap;
@@ -413,29 +426,13 @@ public void setModLoaderEnabled() {
     modsButton.setEnabled(modLoaderExists);
   }
 
+  /**
+   * Called from updater and download threads, the bus paints the latest update
+   * on the EDT.
+   */
   @Override
   public void stateChanged(String fileName, float progress) {
-    int intProgress = Math.round(progress);
-
-    if (intProgress >= 0) {
-      progressBar.setValue(intProgress);
-      progressBar.setIndeterminate(false);
-    } else {
-      progressBar.setIndeterminate(true);
-    }
-
-    fileName = fileName.replace(workingDir, "");
-    if (fileName.contains("?")) {
-      fileName = fileName.substring(0, fileName.indexOf("?"));
-    }
-
-    if (fileName.length() > 60) {
-      fileName = fileName.substring(0, 60) + "...";
-    }
-    String progressText = intProgress + "% " + fileName;
-    if (intProgress < 0)
-      progressText = fileName;
-    progressBar.setString(progressText);
+    progressBus.stateChanged(fileName, progress);
   }
 
   @Override
@@ -567,11 +564,17 @@ public void actionPerformed(ActionEvent event) {
       this.usernameField.setSelectedItem(loginSkin2.getAccountEmail());
     }
     if ((source == modpackList)) {
-      if (ModPackListYML.currentModPack == null) {
-        SettingsUtil.init();
-        GameUpdater.copy(SettingsUtil.settingsFile, ModPackListYML.ORIGINAL_PROPERTIES);
-      } else {
-        GameUpdater.copy(SettingsUtil.settingsFile, new File(GameUpdater.modpackDir, "launcher.properties"));
+      try {
+        if (ModPackListYML.currentModPack == null) {
+          SettingsUtil.init();
+          GameUpdater.copy(SettingsUtil.settingsFile, ModPackListYML.ORIGINAL_PROPERTIES);
+        } else {
+          GameUpdater.copy(SettingsUtil.settingsFile, new File(GameUpdater.modpackDir, "launcher.properties"));
+        }
+      } catch (IOException e) {
+        Util.log("Could not save the settings of the current modpack");
+        e.printStackTrace();
+        JOptionPane.showMessageDialog(getParent(), "Failed to save the modpack settings!\n" + e.getMessage());
       }
       String selectedItem = (String) modpackList.getSelectedItem();
       SettingsUtil.setModPack(selectedItem);
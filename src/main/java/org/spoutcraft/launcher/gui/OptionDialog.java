@@ -48,6 +48,7 @@
 import org.spoutcraft.launcher.Main;
 import org.spoutcraft.launcher.MinecraftYML;
 import org.spoutcraft.launcher.SettingsUtil;
+import org.spoutcraft.launcher.Util;
 import org.spoutcraft.launcher.modpacks.InstalledModsYML;
 import org.spoutcraft.launcher.modpacks.ModPackYML;
 
@@ -307,7 +308,13 @@ public void actionPerformed(ActionEvent evt) {
       }
 
       File propFile = new File(GameUpdater.modpackDir, "launcher.properties");
-      GameUpdater.copy(SettingsUtil.settingsFile, propFile);
+      try {
+        GameUpdater.copy(SettingsUtil.settingsFile, propFile);
+      } catch (IOException e) {
+        Util.log("Could not save the settings of modpack '%s'", SettingsUtil.getModPackSelection());
+        e.printStackTrace();
+        JOptionPane.showMessageDialog(getParent(), "Failed to save the modpack settings!\n" + e.getMessage());
+      }
 
       if (reboot)
         Main.reboot("-Xmx" + selectedMemory + "m");
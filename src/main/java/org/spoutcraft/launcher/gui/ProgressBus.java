@@ -0,0 +1,144 @@
+package org.spoutcraft.launcher.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+
+import org.spoutcraft.launcher.async.DownloadListener;
+import org.spoutcraft.launcher.async.ProgressDispatcher;
+
+/**
+ * Collects progress updates from any thread and shows only the latest one on
+ * the progress bar, at most about 30 times a second and always on the EDT.
+ * While downloads are running the bar shows their combined progress, with the
+ * overall throughput and the time left.
+ */
+public class ProgressBus implements DownloadListener, ActionListener {
+
+  private static final int    INTERVAL   = 33;
+  private static final long   IDLE_STOP  = 1000;
+  private static final double ALPHA      = 0.1;
+
+  private final JProgressBar  progressBar;
+  private final String        workingDir;
+  private final Timer         timer;
+  private volatile Update     pending    = null;
+  private Update              shown      = null;
+  private long                lastBytes  = 0;
+  private long                lastSample = 0;
+  private double              rate       = 0;
+  private long                lastChange = 0;
+
+  public ProgressBus(JProgressBar progressBar, String workingDir) {
+    this.progressBar = progressBar;
+    this.workingDir = workingDir;
+    this.timer = new Timer(INTERVAL, this);
+    this.timer.setCoalesce(true);
+  }
+
+  /**
+   * Records an update, may be called from any thread. Nothing is painted here.
+   */
+  public void stateChanged(String fileName, float progress) {
+    pending = new Update(fileName, progress);
+    if (!timer.isRunning()) {
+      timer.start();
+    }
+  }
+
+  /**
+   * Timer tick on the EDT.
+   */
+  public void actionPerformed(ActionEvent e) {
+    long now = System.currentTimeMillis();
+    sampleThroughput(now);
+
+    Update update = pending;
+    boolean downloading = ProgressDispatcher.getActiveDownloads() > 0;
+    if (update != shown || downloading) {
+      shown = update;
+      lastChange = now;
+      if (update != null) {
+        show(update, downloading);
+      }
+    } else if (now - lastChange > IDLE_STOP) {
+      timer.stop();
+      lastSample = 0;
+      rate = 0;
+      // An update may have arrived while the timer was still seen as running
+      if (pending != shown) {
+        timer.start();
+      }
+    }
+  }
+
+  private void sampleThroughput(long now) {
+    long bytes = ProgressDispatcher.getTransferredBytes();
+    if (lastSample != 0 && now > lastSample) {
+      double current = (bytes - lastBytes) * 1000D / (now - lastSample);
+      rate += ALPHA * (current - rate);
+    }
+    lastBytes = bytes;
+    lastSample = now;
+  }
+
+  private void show(Update update, boolean downloading) {
+    int intProgress = Math.round(update.progress);
+    String summary = "";
+    if (downloading) {
+      long total = ProgressDispatcher.getActiveSize();
+      if (total > 0) {
+        long done = ProgressDispatcher.getActiveDownloaded();
+        intProgress = (int) (done * 100 / total);
+        summary = String.format(" (%s/s, %s left)", formatBytes((long) rate), formatTime(total - done));
+      }
+    }
+
+    if (intProgress >= 0) {
+      progressBar.setValue(intProgress);
+      progressBar.setIndeterminate(false);
+    } else {
+      progressBar.setIndeterminate(true);
+    }
+
+    String fileName = update.fileName.replace(workingDir, "");
+    if (fileName.contains("?")) {
+      fileName = fileName.substring(0, fileName.indexOf("?"));
+    }
+
+    if (fileName.length() > 60) {
+      fileName = fileName.substring(0, 60) + "...";
+    }
+    String progressText = intProgress + "% " + fileName + summary;
+    if (intProgress < 0)
+      progressText = fileName;
+    progressBar.setString(progressText);
+  }
+
+  private String formatTime(long remainingBytes) {
+    if (rate < 1) {
+      return "?";
+    }
+    long seconds = (long) (remainingBytes / rate);
+    return seconds >= 60 ? String.format("%d:%02d", seconds / 60, seconds % 60) : seconds + "s";
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes >= 1024 * 1024) {
+      return String.format("%.1f MB", bytes / (1024D * 1024D));
+    }
+    return String.format("%d KB", bytes / 1024);
+  }
+
+  private static class Update {
+    private final String fileName;
+    private final float  progress;
+
+    private Update(String fileName, float progress) {
+      this.fileName = fileName;
+      this.progress = progress;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package org.spoutcraft.launcher.modpacks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.spoutcraft.launcher.FileUtils;
+import org.spoutcraft.launcher.GameUpdater;
+import org.spoutcraft.launcher.Util;
+import org.spoutcraft.launcher.zip.ZipExtractor;
+
+/**
+ * Every file a mod installed into the modpack, with its size, CRC-32 and the
+ * mod that owns it. A file belongs to the mod that installed it last, so
+ * uninstalling a mod never deletes a file another mod replaced, and files the
+ * player changed since are kept too. Uninstalling needs neither the mod's
+ * archive nor the cache.
+ */
+public class InstalledFilesManifest {
+
+  private static final String      INSTALLED_FILES = "installedFiles.manifest";
+  private static final String      META_INF        = "META-INF/";
+
+  private static Map<String, Entry> files;
+  private static File               filesLocation;
+
+  public static File getManifestFile() {
+    return new File(GameUpdater.modpackDir, INSTALLED_FILES);
+  }
+
+  /**
+   * Records the files of archive as installed by modName.
+   */
+  public static void record(String modName, File archive) throws IOException {
+    Map<String, Entry> files = getFiles();
+    int conflicts = 0;
+    ZipFile zip = new ZipFile(archive);
+    try {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.isDirectory() || entry.getName().startsWith(META_INF)) {
+          continue;
+        }
+        Entry previous = files.put(entry.getName(), new Entry(modName, entry.getSize(), entry.getCrc()));
+        if (previous != null && !previous.owner.equals(modName)) {
+          Util.log("'%s' of mod '%s' replaced the one installed by '%s'", entry.getName(), modName, previous.owner);
+          conflicts++;
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    save();
+    if (conflicts > 0) {
+      Util.log("Mod '%s' replaced %d files of other mods", modName, conflicts);
+    }
+  }
+
+  /**
+   * @return true if the files of modName are recorded
+   */
+  public static boolean hasMod(String modName) {
+    for (Entry entry : getFiles().values()) {
+      if (entry.owner.equals(modName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Deletes the files owned by modName that are unchanged since it installed
+   * them, and forgets all of its files.
+   *
+   * @return number of files deleted
+   */
+  public static int uninstall(String modName) throws IOException {
+    int deleted = 0;
+    Iterator<Map.Entry<String, Entry>> it = getFiles().entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> file = it.next();
+      Entry entry = file.getValue();
+      if (!entry.owner.equals(modName)) {
+        continue;
+      }
+      it.remove();
+      File installed = new File(GameUpdater.modpackDir, file.getKey());
+      if (!installed.isFile()) {
+        continue;
+      }
+      if (installed.length() != entry.size || ZipExtractor.getCrc(installed) != entry.crc) {
+        Util.log("Keeping '%s', it changed since '%s' installed it", installed.getPath(), modName);
+      } else if (installed.delete()) {
+        deleted++;
+      } else {
+        Util.log("Could not delete '%s'", installed.getPath());
+      }
+    }
+    save();
+    return deleted;
+  }
+
+  private static Map<String, Entry> getFiles() {
+    File manifest = getManifestFile();
+    if (files == null || filesLocation.compareTo(manifest) != 0) {
+      filesLocation = manifest;
+      files = new LinkedHashMap<String, Entry>();
+      try {
+        load();
+      } catch (IOException e) {
+        Util.log("Could not read '%s': %s", manifest.getPath(), e.getMessage());
+      }
+    }
+    return files;
+  }
+
+  private static void load() throws IOException {
+    if (!filesLocation.exists()) {
+      return;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filesLocation), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] split = line.split("\\|", 4);
+        if (split.length != 4) {
+          continue;
+        }
+        try {
+          files.put(split[3], new Entry(split[2], Long.parseLong(split[1]), Long.parseLong(split[0], 16)));
+        } catch (NumberFormatException ignore) {
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void save() throws IOException {
+    File tempFile = new File(filesLocation.getParentFile(), INSTALLED_FILES + ".tmp");
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+    try {
+      for (Map.Entry<String, Entry> file : files.entrySet()) {
+        Entry entry = file.getValue();
+        writer.write(Long.toHexString(entry.crc) + "|" + entry.size + "|" + entry.owner + "|" + file.getKey() + "\n");
+      }
+      writer.close();
+      writer = null;
+      FileUtils.moveAtomically(tempFile, filesLocation);
+    } finally {
+      Util.closeQuietly(writer);
+      tempFile.delete();
+    }
+  }
+
+  private static class Entry {
+    private final String owner;
+    private final long   size;
+    private final long   crc;
+
+    private Entry(String owner, long size, long crc) {
+      this.owner = owner;
+      this.size = size;
+      this.crc = crc;
+    }
+  }
+}
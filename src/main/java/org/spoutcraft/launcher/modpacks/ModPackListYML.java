@@ -3,6 +3,7 @@
 import java.awt.Image;
 import java.awt.Toolkit;
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -86,7 +87,7 @@ public static void updateModPacksYMLCache() {
     }
   }
 
-  public static void setCurrentModpack() {
+  public static void setCurrentModpack() throws IOException {
     Map<String, String> modPackMap = getModPacks();
     setModPack(SettingsUtil.getModPackSelection(), modPackMap.get(SettingsUtil.getModPackSelection()), false);
     File propFile = new File(GameUpdater.modpackDir, "launcher.properties");
@@ -8,9 +8,15 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
@@ -19,6 +25,8 @@
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.model.FileHeader;
 
+import org.spoutcraft.diff.JarDelta;
+import org.spoutcraft.launcher.ContentStore;
 import org.spoutcraft.launcher.DownloadUtils;
 import org.spoutcraft.launcher.GameUpdater;
 import org.spoutcraft.launcher.MD5Utils;
@@ -27,6 +35,7 @@
 import org.spoutcraft.launcher.SettingsUtil;
 import org.spoutcraft.launcher.Util;
 import org.spoutcraft.launcher.async.Download;
+import org.spoutcraft.launcher.zip.StreamingExtractor;
 
 @SuppressWarnings("unchecked")
 public class ModPackUpdater extends GameUpdater {
@@ -35,8 +44,10 @@ public class ModPackUpdater extends GameUpdater {
 
   private static final String baseFallbackURL    = "https://mirror.technicpack.net/Technic/";
   private static final String fallbackModsURL    = baseFallbackURL + "mods/";
+  private static final int    DOWNLOAD_THREADS   = 4;
 
   public void updateModPackMods() {
+    ExecutorService downloads = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
     try {
 
       Map<String, Object> modLibrary = (Map<String, Object>) ModLibraryYML.getModLibraryYML().getProperty("mods");
@@ -45,8 +56,12 @@ public void updateModPackMods() {
       // Remove Mods no longer in previous version
       removeOldMods(currentModList.keySet());
 
+      // Downloads (and their MD5 checks) run in parallel, while mods are
+      // extracted one at a time in mod list order as soon as they are ready,
+      // so mods that overwrite the same files always do so in the same order.
+      List<PendingMod> pendingMods = new ArrayList<PendingMod>();
       for (Map.Entry<String, Object> modEntry2 : currentModList.entrySet()) {
-        String modName = modEntry2.getKey();
+        final String modName = modEntry2.getKey();
 
         if (!modLibrary.containsKey(modName)) {
           throw new IOException(String.format("Mod '%s' is missing from the mod library", modName));
@@ -62,7 +77,7 @@ public void updateModPackMods() {
         }
 
         String installType = modProperties.containsKey("installtype") ? (String) modProperties.get("installtype") : "zip";
-        String fullFilename = modName + "-" + version + "." + installType;
+        final String fullFilename = modName + "-" + version + "." + installType;
 
         String installedModVersion = InstalledModsYML.getInstalledModVersion(modName);
 
@@ -75,17 +90,44 @@ public void updateModPackMods() {
           }
         }
 
-        File modFile = new File(tempDir, fullFilename);
+        final File modFile = new File(tempDir, fullFilename);
+        final String modVersion = version;
+        final String previousVersion = installedModVersion;
+        final String libraryMD5 = getLibraryMD5(modVersions, version);
+        final StreamingExtractor staging = new StreamingExtractor(new File(tempDir, fullFilename + ".staged"), fullFilename);
+        Future<Boolean> download = downloads.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return downloadModPackage(modName, modVersion, previousVersion, fullFilename, libraryMD5, modFile, staging);
+          }
+        });
+        pendingMods.add(new PendingMod(modName, version, modFile, download, staging));
+      }
+      downloads.shutdown();
 
+      int installed = 0;
+      for (PendingMod mod : pendingMods) {
         // If have the mod file then update
-        if (downloadModPackage(modName, fullFilename, modFile)) {
-          updateMod(modFile, modName, version);
+        if (mod.download.get()) {
+          updateMod(mod.file, mod.name, mod.version, mod.staging);
+        } else {
+          mod.staging.discard();
         }
+        installed++;
+        stateChanged(String.format("Installed %d of %d mods", installed, pendingMods.size()), 100F * installed / pendingMods.size());
       }
 
       extractCustomZip();
+      ContentStore.collectGarbage();
+      Util.logi("%s", ContentStore.getReport());
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+    } finally {
+      downloads.shutdownNow();
     }
   }
 
@@ -126,6 +168,32 @@ private void removeOldMods(Set<String> modsToInstall) {
   }
 
   public boolean downloadModPackage(String name, String filename, File downloadedFile) {
+    return downloadModPackage(name, null, null, filename, null, downloadedFile);
+  }
+
+  /**
+   * Installs a mod archive from the cache, by patching the cached archive of
+   * the previously installed version forward, or by downloading it in full,
+   * whichever works first.
+   * 
+   * @param name of the mod
+   * @param version to install, may be null
+   * @param previousVersion installed before, may be null
+   * @param filename of the archive
+   * @param md5 of the archive from the mod library, may be null
+   * @param downloadedFile to place the archive at
+   * @return true if the archive is in place
+   */
+  public boolean downloadModPackage(String name, String version, String previousVersion, String filename, String md5, File downloadedFile) {
+    return downloadModPackage(name, version, previousVersion, filename, md5, downloadedFile, null);
+  }
+
+  /**
+   * Like {@link #downloadModPackage(String, String, String, String, String, File)},
+   * but a full download is also extracted into staging while it arrives. The
+   * staged files are kept only if they came from exactly the verified archive.
+   */
+  private boolean downloadModPackage(String name, String version, String previousVersion, String filename, String md5, File downloadedFile, StreamingExtractor staging) {
     try {
       // Install from cache if md5 matches otherwise download and insert
       // to cache
@@ -133,16 +201,33 @@ public boolean downloadModPackage(String name, String filename, File downloadedF
       String md5Name = "mods\\" + name + "\\" + filename;
       if (modCache.exists() && MD5Utils.checksumCachePath(filename, md5Name)) {
         stateChanged("Copying " + filename + " from cache", 0);
-        copy(modCache, downloadedFile);
+        ContentStore.install(modCache, downloadedFile);
         stateChanged("Copied " + filename + " from cache", 100);
         return true;
+      } else if (patchModPackage(name, previousVersion, version, filename, md5, downloadedFile)) {
+        return true;
       } else {
         String mirrorURL = "mods/" + name + "/" + filename;
         String fallbackURL = fallbackModsURL + name + "/" + filename;
         String url = MirrorUtils.getMirrorUrl(mirrorURL, fallbackURL, this);
         String fileMD5 = MD5Utils.getMD5FromList(mirrorURL);
-        Download download = DownloadUtils.downloadFile(url, downloadedFile.getPath(), filename, fileMD5, this);
-        return download.isSuccess();
+        if (staging == null) {
+          Download download = DownloadUtils.downloadFile(url, downloadedFile.getPath(), filename, fileMD5, this);
+          return download.isSuccess();
+        }
+        Download download = null;
+        try {
+          download = DownloadUtils.downloadFile(url, downloadedFile.getPath(), filename, fileMD5, this, staging.start());
+        } finally {
+          boolean staged = staging.finish();
+          // The staged files are only kept if they came from exactly the
+          // archive the mirror lists
+          String stagedMD5 = staging.getMD5();
+          if (!staged || download == null || !download.isSuccess() || !stagedMD5.equalsIgnoreCase(download.getMD5()) || (fileMD5 != null && !stagedMD5.equalsIgnoreCase(fileMD5))) {
+            staging.discard();
+          }
+        }
+        return download != null && download.isSuccess();
       }
     } catch (MalformedURLException e) {
       Util.log("Cannot download the mod '%s'. Does the exact filename exist on the mirror?", "mods/" + name + "/" + filename);
@@ -152,6 +237,71 @@ public boolean downloadModPackage(String name, String filename, File downloadedF
     return false;
   }
 
+  /**
+   * Applies mods/&lt;name&gt;/&lt;old&gt;-&lt;new&gt;.patch to the cached archive of
+   * the previous version, if the checksum list has such a patch.
+   */
+  private boolean patchModPackage(String name, String fromVersion, String toVersion, String filename, String md5, File downloadedFile) {
+    if (fromVersion == null || toVersion == null || fromVersion.equals(toVersion)) {
+      return false;
+    }
+    String mirrorURL = "mods/" + name + "/" + filename;
+    if (md5 == null) {
+      md5 = MD5Utils.getMD5FromList(mirrorURL);
+    }
+    String patchName = fromVersion + "-" + toVersion + ".patch";
+    String patchPath = "mods/" + name + "/" + patchName;
+    String patchMD5 = MD5Utils.getMD5FromList(patchPath);
+    File cachedFile = new File(cacheDir, name + "-" + fromVersion + filename.substring(filename.lastIndexOf('.')));
+    if (md5 == null || patchMD5 == null || !cachedFile.exists()) {
+      return false;
+    }
+
+    File patch = new File(tempDir, filename + ".patch");
+    File patchedFile = new File(tempDir, filename + ".patched");
+    try {
+      String url = MirrorUtils.getMirrorUrl(patchPath, fallbackModsURL + name + "/" + patchName, this);
+      if (url == null) {
+        return false;
+      }
+      Download download = DownloadUtils.downloadFile(url, patch.getPath(), null, patchMD5, this);
+      if (download == null || !download.isSuccess() || !patch.exists()) {
+        return false;
+      }
+
+      stateChanged(String.format("Patching %s to '%s'", name, toVersion), 0);
+      String resultMD5 = JarDelta.apply(cachedFile, patchedFile, patch);
+      if (!resultMD5.equalsIgnoreCase(md5)) {
+        Util.log("Patched '%s' has MD5 '%s' instead of '%s', downloading it in full", filename, resultMD5, md5);
+        return false;
+      }
+      ContentStore.store(patchedFile, resultMD5);
+      ContentStore.materialize(resultMD5, new File(cacheDir, filename));
+      ContentStore.materialize(resultMD5, downloadedFile);
+      stateChanged(String.format("Patched %s to '%s'", name, toVersion), 100);
+      Util.logi("Patched '%s' from version '%s' with %d byte patch", filename, fromVersion, patch.length());
+      return true;
+    } catch (IOException e) {
+      Util.log("Patching '%s' failed, downloading it in full", filename);
+      e.printStackTrace();
+      return false;
+    } finally {
+      patch.delete();
+      patchedFile.delete();
+    }
+  }
+
+  /**
+   * The versions of a mod in the mod library map to the MD5 of their archive.
+   */
+  private static String getLibraryMD5(Map<String, Object> modVersions, String version) {
+    Object md5 = modVersions.get(version);
+    if (md5 instanceof String && ((String) md5).length() == 32) {
+      return (String) md5;
+    }
+    return null;
+  }
+
   public boolean createJar(File jarFilename, File... filesToAdd) {
     try {
       FileOutputStream stream = new FileOutputStream(jarFilename);
@@ -185,6 +335,14 @@ public boolean createJar(File jarFilename, File... filesToAdd) {
   }
 
   public void updateMod(File modFile, String modName, String modVersion) {
+    updateMod(modFile, modName, modVersion, null);
+  }
+
+  /**
+   * Installs a downloaded mod, from its staged files if the archive was
+   * extracted while it downloaded, otherwise by extracting the archive.
+   */
+  private void updateMod(File modFile, String modName, String modVersion, StreamingExtractor staging) {
     // Check if previous version of mod is installed
     String installedVersion = InstalledModsYML.getInstalledModVersion(modName);
 
@@ -193,15 +351,46 @@ public void updateMod(File modFile, String modName, String modVersion) {
     }
 
     stateChanged("Extracting Files ...", 0);
-    // Extract Mod zip
-    extractCompressedFile(GameUpdater.modpackDir, modFile, true);
+    boolean committed = false;
+    if (staging != null && staging.isStaged()) {
+      try {
+        int moved = staging.commit(GameUpdater.modpackDir);
+        Util.log("Installed %d files of '%s' extracted during download", moved, modFile.getName());
+        committed = true;
+      } catch (IOException e) {
+        Util.log("Could not install staged files of '%s', extracting it again", modFile.getName());
+        e.printStackTrace();
+      }
+    }
+    if (!committed) {
+      // Extract Mod zip
+      extractCompressedFile(GameUpdater.modpackDir, modFile, true);
+    }
 
+    try {
+      InstalledFilesManifest.record(modName, modFile);
+    } catch (IOException e) {
+      Util.log("Could not record the files of '%s'", modFile.getName());
+      e.printStackTrace();
+    }
     InstalledModsYML.setInstalledModVersion(modName, modVersion);
 
     modFile.delete();
   }
 
   private void removePreviousModVersion(String modName, String installedVersion) {
+    if (InstalledFilesManifest.hasMod(modName)) {
+      try {
+        int deleted = InstalledFilesManifest.uninstall(modName);
+        Util.log("Deleted %d files of '%s' version '%s'", deleted, modName, installedVersion);
+        InstalledModsYML.removeMod(modName);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    // Installed before its files were recorded, the archive tells which
+    // files are the mod's
     File previousModZip = new File(cacheDir, modName + "-" + installedVersion + ".zip");
     if (!previousModZip.exists()) {
       Util.log("[File not Found] Could not delete '%s'.", previousModZip.getPath());
@@ -284,4 +473,20 @@ public boolean isModpackUpdateAvailable() throws IOException {
 
     return false;
   }
+
+  private static class PendingMod {
+    private final String             name;
+    private final String             version;
+    private final File               file;
+    private final Future<Boolean>    download;
+    private final StreamingExtractor staging;
+
+    private PendingMod(String name, String version, File file, Future<Boolean> download, StreamingExtractor staging) {
+      this.name = name;
+      this.version = version;
+      this.file = file;
+      this.download = download;
+      this.staging = staging;
+    }
+  }
 }
@@ -0,0 +1,267 @@
+package org.spoutcraft.launcher.zip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.spoutcraft.launcher.FileHashIndex;
+import org.spoutcraft.launcher.FileUtils;
+import org.spoutcraft.launcher.Util;
+
+/**
+ * Extracts a zip while it downloads. The bytes of the download are written to
+ * the stream returned by {@link #start()}, and a background thread unpacks the
+ * entries into a staging directory as they arrive. Nothing reaches the real
+ * destination until {@link #commit(File)} moves the staged files into place,
+ * which the caller does only once the archive's MD5 has been verified.
+ * <p>
+ * The MD5 of every byte written is computed here too, so a download that
+ * restarted or was corrupted never matches and the staged files are thrown
+ * away.
+ */
+public class StreamingExtractor {
+
+  private static final int             QUEUE_CHUNKS = 64;
+  private static final int             BUFFER_SIZE  = 64 * 1024;
+  private static final byte[]          END          = new byte[0];
+  private static final String          META_INF     = "META-INF/";
+
+  private final File                   stagingDir;
+  private final String                 name;
+  private final BlockingQueue<byte[]>  queue        = new ArrayBlockingQueue<byte[]>(QUEUE_CHUNKS);
+  private final Map<String, Long>      staged       = new LinkedHashMap<String, Long>();
+  private final MessageDigest          digest;
+  private Thread                       thread       = null;
+  private volatile boolean             failed       = false;
+  private volatile boolean             complete     = false;
+
+  public StreamingExtractor(File stagingDir, String name) {
+    this.stagingDir = stagingDir;
+    this.name = name;
+    try {
+      this.digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Starts the extraction thread.
+   *
+   * @return stream to write the archive to, in order
+   */
+  public OutputStream start() {
+    FileUtils.deleteQuietly(stagingDir);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        extract();
+      }
+    }, "Extracting " + name);
+    thread.setDaemon(true);
+    thread.start();
+    return new Sink();
+  }
+
+  /**
+   * Waits for the extraction thread after the last byte was written.
+   *
+   * @return true if a complete archive was staged
+   */
+  public boolean finish() {
+    enqueue(END);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed = true;
+    }
+    return isStaged();
+  }
+
+  /**
+   * @return true if a complete archive is staged and was not discarded
+   */
+  public boolean isStaged() {
+    return complete && !failed;
+  }
+
+  /**
+   * @return MD5 of all bytes written to the stream
+   */
+  public String getMD5() {
+    return Hex.encodeHexString(digest.digest());
+  }
+
+  /**
+   * Moves the staged files into destination, in archive order, and removes
+   * the staging directory.
+   *
+   * @return number of files moved
+   */
+  public int commit(File destination) throws IOException {
+    if (!isStaged()) {
+      throw new IOException("Nothing was staged for " + name);
+    }
+    try {
+      File root = destination.getCanonicalFile();
+      File stagingRoot = stagingDir.getCanonicalFile();
+      int moved = 0;
+      for (Map.Entry<String, Long> entry : staged.entrySet()) {
+        File target = ZipExtractor.resolve(root, entry.getKey());
+        if (entry.getKey().endsWith("/")) {
+          ZipExtractor.mkdirs(target);
+          continue;
+        }
+        ZipExtractor.mkdirs(target.getParentFile());
+        FileUtils.moveAtomically(ZipExtractor.resolve(stagingRoot, entry.getKey()), target);
+        if (entry.getValue() != -1) {
+          FileHashIndex.putCrc(target, entry.getValue());
+        }
+        moved++;
+      }
+      return moved;
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Removes anything staged so far.
+   */
+  public void discard() {
+    complete = false;
+    FileUtils.deleteQuietly(stagingDir);
+  }
+
+  private void extract() {
+    Source source = new Source();
+    try {
+      File root = stagingDir.getCanonicalFile();
+      ZipExtractor.mkdirs(root);
+      ZipInputStream zip = new ZipInputStream(source);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (entry.getName().startsWith(META_INF)) {
+          continue;
+        }
+        File target = ZipExtractor.resolve(root, entry.getName());
+        if (entry.isDirectory()) {
+          ZipExtractor.mkdirs(target);
+          staged.put(entry.getName(), -1L);
+          continue;
+        }
+        ZipExtractor.mkdirs(target.getParentFile());
+        OutputStream out = new FileOutputStream(target);
+        try {
+          int read;
+          while ((read = zip.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        } finally {
+          out.close();
+        }
+        if (entry.getTime() != -1) {
+          target.setLastModified(entry.getTime());
+        }
+        staged.put(entry.getName(), entry.getCrc());
+      }
+      // An archive without entries is more likely not a zip at all
+      complete = !staged.isEmpty();
+      // Whatever follows the last entry still has to be read so the
+      // download is never blocked on a full queue
+      while (source.read(buffer) != -1) {
+        // discard
+      }
+    } catch (IOException e) {
+      failed = true;
+      queue.clear();
+      Util.log("Could not extract '%s' while downloading: %s", name, e.getMessage());
+    } catch (RuntimeException e) {
+      failed = true;
+      queue.clear();
+      e.printStackTrace();
+    }
+  }
+
+  private void enqueue(byte[] chunk) {
+    try {
+      while (!failed && !queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+        // extraction is behind, wait for it
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed = true;
+    }
+  }
+
+  /**
+   * Receives the download. Writes never fail, if extraction stopped the bytes
+   * are only hashed.
+   */
+  private class Sink extends OutputStream {
+    @Override
+    public void write(int b) {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (len == 0) {
+        return;
+      }
+      digest.update(b, off, len);
+      byte[] chunk = new byte[len];
+      System.arraycopy(b, off, chunk, 0, len);
+      enqueue(chunk);
+    }
+  }
+
+  private class Source extends InputStream {
+    private byte[]  current = null;
+    private int     pos     = 0;
+    private boolean ended   = false;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (current == null || pos == current.length) {
+        if (ended) {
+          return -1;
+        }
+        try {
+          current = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while extracting " + name);
+        }
+        pos = 0;
+        if (current == END) {
+          ended = true;
+          return -1;
+        }
+      }
+      int count = Math.min(len, current.length - pos);
+      System.arraycopy(current, pos, b, off, count);
+      pos += count;
+      return count;
+    }
+  }
+}
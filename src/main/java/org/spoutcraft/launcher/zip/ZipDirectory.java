@@ -0,0 +1,237 @@
+package org.spoutcraft.launcher.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the central directory of a zip file without inflating anything, giving
+ * the exact position of every entry's local header and compressed data so they
+ * can be copied or compared byte for byte.
+ * <p>
+ * Zip64 archives are not supported.
+ */
+public class ZipDirectory {
+
+  public static final int           STORED        = 0;
+  public static final int           DEFLATED      = 8;
+
+  private static final int          LOCAL_SIG     = 0x04034b50;
+  private static final int          CENTRAL_SIG   = 0x02014b50;
+  private static final int          END_SIG       = 0x06054b50;
+  private static final int          END_SIZE      = 22;
+  private static final int          MAX_COMMENT   = 0xffff;
+
+  private final List<Entry>         entries;
+  private final Map<String, Entry>  byName;
+  private final long                centralDirectoryOffset;
+  private final long                length;
+
+  public ZipDirectory(FileChannel channel) throws IOException {
+    length = channel.size();
+
+    long end = findEnd(channel);
+    ByteBuffer eocd = read(channel, end, END_SIZE);
+    int count = eocd.getShort(10) & 0xffff;
+    long cdSize = eocd.getInt(12) & 0xffffffffL;
+    centralDirectoryOffset = eocd.getInt(16) & 0xffffffffL;
+    if (count == 0xffff || cdSize == 0xffffffffL || centralDirectoryOffset == 0xffffffffL) {
+      throw new IOException("Zip64 archives are not supported");
+    }
+    if (centralDirectoryOffset + cdSize > end) {
+      throw new IOException("Invalid zip central directory");
+    }
+
+    ByteBuffer cd = read(channel, centralDirectoryOffset, (int) cdSize);
+    List<Entry> list = new ArrayList<Entry>(count);
+    Map<String, Entry> names = new HashMap<String, Entry>(count * 2);
+    ByteBuffer local = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < count; i++) {
+      int pos = cd.position();
+      if (cd.remaining() < 46 || cd.getInt(pos) != CENTRAL_SIG) {
+        throw new IOException("Invalid zip central directory entry " + i);
+      }
+      Entry entry = new Entry();
+      entry.versionMadeBy = cd.getShort(pos + 4) & 0xffff;
+      entry.flags = cd.getShort(pos + 8) & 0xffff;
+      entry.method = cd.getShort(pos + 10) & 0xffff;
+      entry.dosTime = cd.getInt(pos + 12);
+      entry.crc = cd.getInt(pos + 16) & 0xffffffffL;
+      entry.compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+      entry.size = cd.getInt(pos + 24) & 0xffffffffL;
+      int nameLen = cd.getShort(pos + 28) & 0xffff;
+      int extraLen = cd.getShort(pos + 30) & 0xffff;
+      int commentLen = cd.getShort(pos + 32) & 0xffff;
+      entry.externalAttributes = cd.getInt(pos + 38);
+      entry.localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+      if (entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL || entry.localHeaderOffset == 0xffffffffL) {
+        throw new IOException("Zip64 archives are not supported");
+      }
+
+      byte[] name = new byte[nameLen];
+      cd.position(pos + 46);
+      cd.get(name);
+      entry.name = new String(name, (entry.flags & 0x800) != 0 ? "UTF-8" : "Cp437");
+      cd.position(pos + 46 + nameLen + extraLen + commentLen);
+
+      local.clear();
+      readFully(channel, local, entry.localHeaderOffset);
+      if (local.getInt(0) != LOCAL_SIG) {
+        throw new IOException("Invalid local header for " + entry.name);
+      }
+      entry.dataOffset = entry.localHeaderOffset + 30 + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+      if (entry.dataOffset + entry.compressedSize > centralDirectoryOffset) {
+        throw new IOException("Entry " + entry.name + " overlaps the central directory");
+      }
+
+      list.add(entry);
+      if (!names.containsKey(entry.name)) {
+        names.put(entry.name, entry);
+      }
+    }
+
+    Collections.sort(list, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.localHeaderOffset < b.localHeaderOffset ? -1 : a.localHeaderOffset == b.localHeaderOffset ? 0 : 1;
+      }
+    });
+    entries = Collections.unmodifiableList(list);
+    byName = names;
+  }
+
+  /**
+   * @return the entries, in the order they are stored in the file
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  public Entry getEntry(String name) {
+    return byName.get(name);
+  }
+
+  public long getCentralDirectoryOffset() {
+    return centralDirectoryOffset;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Reads len bytes at position into a new little-endian buffer.
+   */
+  public static ByteBuffer read(FileChannel channel, long position, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, buf, position);
+    buf.flip();
+    return buf;
+  }
+
+  public static byte[] readBytes(FileChannel channel, long position, long len) throws IOException {
+    if (len > Integer.MAX_VALUE) {
+      throw new IOException("Region too large: " + len);
+    }
+    byte[] bytes = new byte[(int) len];
+    readFully(channel, ByteBuffer.wrap(bytes), position);
+    return bytes;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      int read = channel.read(buf, position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of zip file");
+      }
+      position += read;
+    }
+  }
+
+  private static long findEnd(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size < END_SIZE) {
+      throw new IOException("Not a zip file");
+    }
+    int tail = (int) Math.min(size, END_SIZE + MAX_COMMENT);
+    ByteBuffer buf = read(channel, size - tail, tail);
+    for (int i = tail - END_SIZE; i >= 0; i--) {
+      if (buf.getInt(i) == END_SIG && i + END_SIZE + (buf.getShort(i + 20) & 0xffff) == tail) {
+        return size - tail + i;
+      }
+    }
+    throw new IOException("Zip end of central directory not found");
+  }
+
+  public static class Entry {
+    private String name;
+    private int    versionMadeBy;
+    private int    flags;
+    private int    method;
+    private int    dosTime;
+    private long   crc;
+    private long   compressedSize;
+    private long   size;
+    private int    externalAttributes;
+    private long   localHeaderOffset;
+    private long   dataOffset;
+
+    public String getName() {
+      return name;
+    }
+
+    public int getVersionMadeBy() {
+      return versionMadeBy;
+    }
+
+    public int getFlags() {
+      return flags;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    /**
+     * @return modification time and date in MS-DOS format
+     */
+    public int getDosTime() {
+      return dosTime;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public int getExternalAttributes() {
+      return externalAttributes;
+    }
+
+    public long getLocalHeaderOffset() {
+      return localHeaderOffset;
+    }
+
+    public long getDataOffset() {
+      return dataOffset;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+}
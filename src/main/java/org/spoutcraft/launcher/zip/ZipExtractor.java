@@ -0,0 +1,232 @@
+package org.spoutcraft.launcher.zip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.spoutcraft.launcher.FileHashIndex;
+import org.spoutcraft.launcher.FileUtils;
+import org.spoutcraft.launcher.Util;
+import org.spoutcraft.launcher.async.DownloadListener;
+
+/**
+ * Extracts zip files with a pool of workers reading from one shared
+ * {@link ZipFile}. Entries under META-INF are skipped, files are written to a
+ * temporary name and moved into place once complete, and progress is reported
+ * to a listener after every entry.
+ * <p>
+ * In incremental mode an existing file is left alone when its size and CRC-32
+ * match the entry in the central directory. CRCs of files on disk come from
+ * {@link FileHashIndex}, so an unchanged file is only read the first time.
+ */
+public class ZipExtractor {
+
+  private static final int    BUFFER_SIZE = 64 * 1024;
+  private static final String META_INF    = "META-INF/";
+
+  private static volatile int threads     = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * Sets the number of threads that write entries, for benchmarks.
+   */
+  static void setThreads(int threads) {
+    ZipExtractor.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Extracts every entry of zip outside META-INF into destination, replacing
+   * existing files.
+   *
+   * @param zip
+   * @param destination
+   * @param listener for progress, may be null
+   * @return number of files written
+   * @throws IOException if any entry could not be extracted
+   */
+  public static int extract(File zip, File destination, DownloadListener listener) throws IOException {
+    return extract(zip, destination, listener, false);
+  }
+
+  /**
+   * Extracts every entry of zip outside META-INF into destination.
+   *
+   * @param zip
+   * @param destination
+   * @param listener for progress, may be null
+   * @param incremental skip files that already match their entry
+   * @return number of files written
+   * @throws IOException if any entry could not be extracted
+   */
+  public static int extract(File zip, File destination, DownloadListener listener, final boolean incremental) throws IOException {
+    final ZipFile zipFile = new ZipFile(zip);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final File root = destination.getCanonicalFile();
+      List<ZipEntry> files = new ArrayList<ZipEntry>();
+      long totalSize = 0;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.getName().startsWith(META_INF)) {
+          continue;
+        }
+        File target = resolve(root, entry.getName());
+        if (entry.isDirectory()) {
+          mkdirs(target);
+        } else {
+          files.add(entry);
+          totalSize += Math.max(0, entry.getSize());
+        }
+      }
+
+      final String zipName = zip.getName();
+      final DownloadListener progress = listener;
+      final long total = Math.max(1, totalSize);
+      final AtomicLong done = new AtomicLong();
+      final AtomicInteger written = new AtomicInteger();
+      List<Future<Void>> results = new ArrayList<Future<Void>>(files.size());
+      for (final ZipEntry entry : files) {
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            File target = resolve(root, entry.getName());
+            if (!incremental || !isUnchanged(entry, target)) {
+              extractEntry(zipFile, entry, target);
+              written.incrementAndGet();
+              if (incremental && entry.getCrc() != -1) {
+                FileHashIndex.putCrc(target, entry.getCrc());
+              }
+            }
+            long completed = done.addAndGet(Math.max(0, entry.getSize()));
+            if (progress != null) {
+              progress.stateChanged(String.format("Extracting '%s'...", zipName), 100F * completed / total);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        await(result);
+      }
+      if (incremental) {
+        Util.log("Wrote %d of %d files from '%s', the rest were unchanged", written.get(), files.size(), zipName);
+      }
+      return written.get();
+    } finally {
+      executor.shutdownNow();
+      zipFile.close();
+    }
+  }
+
+  /**
+   * Resolves an entry name inside root, refusing names that would escape it.
+   */
+  static File resolve(File root, String name) throws IOException {
+    File target = new File(root, name).getCanonicalFile();
+    String rootPath = root.getPath();
+    String targetPath = target.getPath();
+    if (!targetPath.equals(rootPath) && !targetPath.startsWith(rootPath + File.separator)) {
+      throw new IOException("Zip entry '" + name + "' is outside of " + root);
+    }
+    return target;
+  }
+
+  private static boolean isUnchanged(ZipEntry entry, File target) throws IOException {
+    if (entry.getCrc() == -1 || entry.getSize() == -1 || !target.isFile() || target.length() != entry.getSize()) {
+      return false;
+    }
+    return getCrc(target) == entry.getCrc();
+  }
+
+  /**
+   * @return the CRC-32 of file, from the {@link FileHashIndex} if it has not
+   *         changed since it was indexed
+   */
+  public static long getCrc(File file) throws IOException {
+    long crc = FileHashIndex.getCrc(file);
+    if (crc == -1) {
+      crc = crc32(file);
+      FileHashIndex.putCrc(file, crc);
+    }
+    return crc;
+  }
+
+  private static long crc32(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return crc.getValue();
+  }
+
+  private static void extractEntry(ZipFile zipFile, ZipEntry entry, File target) throws IOException {
+    mkdirs(target.getParentFile());
+    File temp = new File(target.getParentFile(), target.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    InputStream in = zipFile.getInputStream(entry);
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        out.close();
+      }
+      if (entry.getTime() != -1) {
+        temp.setLastModified(entry.getTime());
+      }
+      FileUtils.moveAtomically(temp, target);
+    } finally {
+      in.close();
+      temp.delete();
+    }
+  }
+
+  static void mkdirs(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Could not create directory " + dir);
+    }
+  }
+
+  private static void await(Future<Void> result) throws IOException {
+    try {
+      result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
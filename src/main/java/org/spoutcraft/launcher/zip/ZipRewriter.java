@@ -0,0 +1,588 @@
+package org.spoutcraft.launcher.zip;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.spoutcraft.launcher.FileUtils;
+import org.spoutcraft.launcher.Util;
+import org.spoutcraft.launcher.async.DownloadListener;
+
+/**
+ * Merges files into an existing zip. Entries that are kept are copied as
+ * they are, compressed bytes and all, using the CRC and sizes from the central
+ * directory, so only the new files are compressed. They are deflated in
+ * parallel on a work-stealing pool, large files in independent blocks, and
+ * written in order. The merged zip replaces the old one in one
+ * step once it is complete.
+ * <p>
+ * Archives that need Zip64, or whose central directory cannot be read, are
+ * merged through {@link ZipOutputStream} instead, which recompresses
+ * everything.
+ */
+public class ZipRewriter {
+
+  private static final int    BUFFER_SIZE     = 64 * 1024;
+  // Larger files are compressed in blocks to a temporary file
+  private static final long   SPOOL_THRESHOLD = 1024 * 1024;
+  private static final int    BLOCK_SIZE      = 128 * 1024;
+  private static final int    DICTIONARY_SIZE = 32 * 1024;
+  private static final long   MAX_OFFSET      = 0xffffffffL;
+  private static final int    MAX_ENTRIES     = 0xffff;
+  private static final String META_INF        = "META-INF";
+
+  private static final int    LOCAL_SIG       = 0x04034b50;
+  private static final int    CENTRAL_SIG     = 0x02014b50;
+  private static final int    END_SIG         = 0x06054b50;
+  private static final int    UTF8_FLAG       = 0x800;
+  private static final int    DESCRIPTOR_FLAG = 0x8;
+
+  private static volatile int threads         = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Sets the number of threads that compress, for benchmarks.
+   */
+  static void setThreads(int threads) {
+    ZipRewriter.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Rewrites zip to hold its entries outside META-INF that are not replaced,
+   * followed by the additions. An addition that cannot be read is left out.
+   *
+   * @param zip
+   *          to merge into, may be empty
+   * @param additions
+   *          entry names mapped to the files to store under them, in the
+   *          order they should be written
+   * @param listener
+   *          for progress, may be null
+   * @param message
+   *          shown with the progress
+   */
+  public static void merge(File zip, Map<String, File> additions, DownloadListener listener, String message) throws IOException {
+    merge(zip, additions, Deflater.DEFAULT_COMPRESSION, listener, message);
+  }
+
+  /**
+   * Like {@link #merge(File, Map, DownloadListener, String)}, compressing the
+   * additions at the given level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public static void merge(File zip, Map<String, File> additions, int level, DownloadListener listener, String message) throws IOException {
+    File parent = zip.getAbsoluteFile().getParentFile();
+    File tempFile = new File(parent, zip.getName() + ".merge.tmp");
+    try {
+      if (!mergeRaw(zip, tempFile, additions, level, listener, message)) {
+        Util.log("Merging into '%s' with recompression", zip.getName());
+        mergeWithStreams(zip, tempFile, additions, level, listener, message);
+      }
+      FileUtils.moveAtomically(tempFile, zip);
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * @return false if the zip cannot be read this way or the result would need
+   *         Zip64, nothing is written then
+   */
+  private static boolean mergeRaw(File zip, File tempFile, Map<String, File> additions, final int level, DownloadListener listener, String message) throws IOException {
+    RandomAccessFile input = zip.length() > 0 ? new RandomAccessFile(zip, "r") : null;
+    try {
+      FileChannel in = input == null ? null : input.getChannel();
+      List<ZipDirectory.Entry> kept = new ArrayList<ZipDirectory.Entry>();
+      long bound = 22;
+      if (in != null) {
+        ZipDirectory directory;
+        try {
+          directory = new ZipDirectory(in);
+        } catch (IOException e) {
+          // Zip64, or damaged in a way ZipFile may still cope with
+          Util.log("Could not read the central directory of '%s': %s", zip.getName(), e.getMessage());
+          return false;
+        }
+        Set<String> seen = new HashSet<String>();
+        for (ZipDirectory.Entry entry : directory.getEntries()) {
+          String name = entry.getName();
+          if (name.contains(META_INF) || additions.containsKey(name) || !seen.add(name)) {
+            continue;
+          }
+          kept.add(entry);
+          bound += 30 + 46 + 2 * name.length() * 3 + entry.getCompressedSize();
+        }
+      }
+      for (Map.Entry<String, File> addition : additions.entrySet()) {
+        // Deflate output can be slightly larger than its input
+        long size = addition.getValue().length();
+        bound += 30 + 46 + 2 * addition.getKey().length() * 3 + size + size / 1000 + 64;
+      }
+      if (kept.size() + additions.size() >= MAX_ENTRIES || bound >= MAX_OFFSET) {
+        return false;
+      }
+
+      Output out = new Output(tempFile);
+      ExecutorService executor = new ForkJoinPool(threads);
+      // New files compressed ahead of the one being written
+      int window = threads * 4;
+      Deque<Future<Compressed>> compressing = new ArrayDeque<Future<Compressed>>();
+      try {
+        int total = Math.max(1, kept.size() + additions.size());
+        int done = 0;
+        for (ZipDirectory.Entry entry : kept) {
+          out.copy(in, entry);
+          progress(listener, message, ++done, total);
+        }
+
+        final File spoolDir = tempFile.getParentFile();
+        Iterator<Map.Entry<String, File>> pending = additions.entrySet().iterator();
+        while (pending.hasNext() || !compressing.isEmpty()) {
+          while (pending.hasNext() && compressing.size() < window) {
+            final Map.Entry<String, File> addition = pending.next();
+            compressing.add(executor.submit(new Callable<Compressed>() {
+              public Compressed call() {
+                return Compressed.of(addition.getKey(), addition.getValue(), spoolDir, level);
+              }
+            }));
+          }
+          Compressed compressed = await(compressing.poll());
+          if (compressed != null) {
+            try {
+              out.write(compressed);
+            } finally {
+              compressed.dispose();
+            }
+          }
+          progress(listener, message, ++done, total);
+        }
+        out.finish();
+      } finally {
+        executor.shutdownNow();
+        discard(executor, compressing);
+        out.close();
+      }
+      return true;
+    } finally {
+      if (input != null) {
+        input.close();
+      }
+    }
+  }
+
+  /**
+   * Removes the temporary files of compressions that were not written.
+   */
+  private static void discard(ExecutorService executor, Deque<Future<Compressed>> compressing) {
+    if (compressing.isEmpty()) {
+      return;
+    }
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Future<Compressed> left : compressing) {
+      try {
+        if (left.isDone() && left.get() != null) {
+          left.get().dispose();
+        }
+      } catch (Exception ignore) {
+      }
+    }
+  }
+
+  private static void mergeWithStreams(File zip, File tempFile, Map<String, File> additions, int level, DownloadListener listener, String message) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+    out.setLevel(level);
+    try {
+      int done = 0;
+      if (zip.length() > 0) {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+          int total = Math.max(1, zipFile.size() + additions.size());
+          Set<String> seen = new HashSet<String>();
+          Enumeration<? extends ZipEntry> entries = zipFile.entries();
+          while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (!name.contains(META_INF) && !additions.containsKey(name) && seen.add(name)) {
+              ZipEntry copy = new ZipEntry(name);
+              copy.setTime(entry.getTime());
+              out.putNextEntry(copy);
+              InputStream in = zipFile.getInputStream(entry);
+              try {
+                copy(in, out, buffer);
+              } finally {
+                in.close();
+              }
+              out.closeEntry();
+            }
+            progress(listener, message, ++done, total);
+          }
+        } finally {
+          zipFile.close();
+        }
+      }
+      int total = Math.max(1, done + additions.size());
+      for (Map.Entry<String, File> addition : additions.entrySet()) {
+        try {
+          InputStream in = new FileInputStream(addition.getValue());
+          try {
+            ZipEntry entry = new ZipEntry(addition.getKey());
+            entry.setTime(addition.getValue().lastModified());
+            out.putNextEntry(entry);
+            copy(in, out, buffer);
+            out.closeEntry();
+          } finally {
+            in.close();
+          }
+        } catch (IOException e) {
+          Util.log("Could not add '%s' to '%s'", addition.getValue().getPath(), zip.getName());
+        }
+        progress(listener, message, ++done, total);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private static void progress(DownloadListener listener, String message, int done, int total) {
+    if (listener != null) {
+      listener.stateChanged(message, 100F * done / total);
+    }
+  }
+
+  private static Compressed await(Future<Compressed> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while merging");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  static int toDosTime(long time) {
+    LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+    if (date.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (date.getYear() - 1980) << 25 | date.getMonthValue() << 21 | date.getDayOfMonth() << 16 | date.getHour() << 11 | date.getMinute() << 5 | date.getSecond() >> 1;
+  }
+
+  /**
+   * A new file, deflated or stored, with its CRC and sizes.
+   */
+  private static class Compressed {
+    private String name;
+    private int    method;
+    private int    dosTime;
+    private long   crc;
+    private long   size;
+    private long   compressedSize;
+    private byte[] data;
+    private File   spool;
+
+    /**
+     * @return the compressed file, or null if it could not be read
+     */
+    private static Compressed of(String name, File file, File spoolDir, int level) {
+      Compressed result = new Compressed();
+      result.name = name;
+      result.dosTime = toDosTime(file.lastModified());
+      try {
+        if (file.length() > SPOOL_THRESHOLD) {
+          result.spool = File.createTempFile("merge", ".tmp", spoolDir);
+          deflateBlocks(result, file, level);
+        } else {
+          deflate(result, file, level);
+        }
+        return result;
+      } catch (IOException e) {
+        Util.log("Could not compress '%s': %s", file.getPath(), e.getMessage());
+        result.dispose();
+        return null;
+      }
+    }
+
+    private static void deflate(Compressed result, File file, int level) throws IOException {
+      ByteArrayOutputStream raw = new ByteArrayOutputStream((int) file.length());
+      ByteArrayOutputStream memory = new ByteArrayOutputStream();
+      Deflater deflater = new Deflater(level, true);
+      try {
+        CRC32 crc = new CRC32();
+        DeflaterOutputStream out = new DeflaterOutputStream(memory, deflater, BUFFER_SIZE);
+        InputStream in = new FileInputStream(file);
+        try {
+          byte[] buffer = new byte[BUFFER_SIZE];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+            raw.write(buffer, 0, read);
+            result.size += read;
+          }
+        } finally {
+          in.close();
+          out.close();
+        }
+        result.crc = crc.getValue();
+        // Already compressed files are smaller stored as they are
+        if (deflater.getBytesWritten() >= result.size) {
+          result.method = ZipDirectory.STORED;
+          result.data = raw.toByteArray();
+          result.compressedSize = result.size;
+        } else {
+          result.method = ZipDirectory.DEFLATED;
+          result.data = memory.toByteArray();
+          result.compressedSize = result.data.length;
+        }
+      } finally {
+        deflater.end();
+      }
+    }
+
+    /**
+     * Deflates a large file in blocks on the pool, the way pigz does. Each
+     * block is primed with the end of the block before it and ends on a sync
+     * flush, so the blocks join into one ordinary deflate stream.
+     */
+    private static void deflateBlocks(Compressed result, File file, final int level) throws IOException {
+      CRC32 crc = new CRC32();
+      Deque<ForkJoinTask<byte[]>> blocks = new ArrayDeque<ForkJoinTask<byte[]>>();
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(result.spool), BUFFER_SIZE);
+      InputStream in = new FileInputStream(file);
+      try {
+        byte[] dictionary = null;
+        while (true) {
+          final byte[] block = readBlock(in);
+          if (block == null) {
+            break;
+          }
+          crc.update(block);
+          result.size += block.length;
+          final byte[] primer = dictionary;
+          blocks.add(ForkJoinTask.adapt(new Callable<byte[]>() {
+            public byte[] call() {
+              return deflateBlock(block, primer, level, false);
+            }
+          }).fork());
+          dictionary = block.length >= DICTIONARY_SIZE ? Arrays.copyOfRange(block, block.length - DICTIONARY_SIZE, block.length) : block;
+          // Blocks of one file compressed ahead of the one being written
+          while (blocks.size() >= threads * 2) {
+            result.compressedSize += write(blocks.poll(), out);
+          }
+        }
+        while (!blocks.isEmpty()) {
+          result.compressedSize += write(blocks.poll(), out);
+        }
+        byte[] last = deflateBlock(new byte[0], null, level, true);
+        out.write(last);
+        result.compressedSize += last.length;
+      } finally {
+        for (ForkJoinTask<byte[]> left : blocks) {
+          left.cancel(true);
+        }
+        in.close();
+        out.close();
+      }
+      result.crc = crc.getValue();
+      result.method = ZipDirectory.DEFLATED;
+    }
+
+    private static int write(ForkJoinTask<byte[]> block, OutputStream out) throws IOException {
+      byte[] data = block.join();
+      out.write(data);
+      return data.length;
+    }
+
+    /**
+     * @return the next block of the stream, or null at its end
+     */
+    private static byte[] readBlock(InputStream in) throws IOException {
+      byte[] block = new byte[BLOCK_SIZE];
+      int length = 0;
+      int read;
+      while (length < block.length && (read = in.read(block, length, block.length - length)) != -1) {
+        length += read;
+      }
+      if (length == 0) {
+        return null;
+      }
+      return length == block.length ? block : Arrays.copyOf(block, length);
+    }
+
+    private static byte[] deflateBlock(byte[] block, byte[] dictionary, int level, boolean last) {
+      Deflater deflater = new Deflater(level, true);
+      try {
+        if (dictionary != null) {
+          deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(block);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 2 + 64);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (last) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+          }
+        } else {
+          int written;
+          do {
+            written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, written);
+          } while (written == buffer.length);
+        }
+        return out.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    private void dispose() {
+      if (spool != null) {
+        spool.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes entries and the central directory to the merged zip.
+   */
+  private static class Output {
+    private final RandomAccessFile      file;
+    private final FileChannel           channel;
+    private final ByteArrayOutputStream central  = new ByteArrayOutputStream();
+    private long                        position = 0;
+    private int                         count    = 0;
+
+    private Output(File target) throws IOException {
+      file = new RandomAccessFile(target, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+    }
+
+    private void copy(FileChannel in, ZipDirectory.Entry entry) throws IOException {
+      byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+      int flags = (entry.getFlags() & ~DESCRIPTOR_FLAG) | UTF8_FLAG;
+      header(name, entry.getVersionMadeBy(), flags, entry.getMethod(), entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize(), entry.getExternalAttributes());
+      long from = entry.getDataOffset();
+      long remaining = entry.getCompressedSize();
+      while (remaining > 0) {
+        long sent = in.transferTo(from, remaining, channel);
+        if (sent <= 0) {
+          throw new IOException("Could not copy " + entry.getName());
+        }
+        from += sent;
+        remaining -= sent;
+      }
+      position += entry.getCompressedSize();
+    }
+
+    private void write(Compressed entry) throws IOException {
+      byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+      header(name, 20, UTF8_FLAG, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, 0);
+      if (entry.spool != null) {
+        FileInputStream in = new FileInputStream(entry.spool);
+        try {
+          FileChannel spool = in.getChannel();
+          long from = 0;
+          while (from < entry.compressedSize) {
+            from += spool.transferTo(from, entry.compressedSize - from, channel);
+          }
+        } finally {
+          in.close();
+        }
+      } else {
+        writeFully(ByteBuffer.wrap(entry.data));
+      }
+      position += entry.compressedSize;
+    }
+
+    private void header(byte[] name, int versionMadeBy, int flags, int method, int dosTime, long crc, long compressedSize, long size, int externalAttributes) throws IOException {
+      ByteBuffer local = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+      local.putInt(LOCAL_SIG).putShort((short) 20).putShort((short) flags).putShort((short) method).putInt(dosTime);
+      local.putInt((int) crc).putInt((int) compressedSize).putInt((int) size).putShort((short) name.length).putShort((short) 0);
+      local.put(name).flip();
+
+      ByteBuffer record = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+      record.putInt(CENTRAL_SIG).putShort((short) versionMadeBy).putShort((short) 20).putShort((short) flags).putShort((short) method);
+      record.putInt(dosTime).putInt((int) crc).putInt((int) compressedSize).putInt((int) size);
+      record.putShort((short) name.length).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+      record.putInt(externalAttributes).putInt((int) position).put(name);
+      central.write(record.array(), 0, record.position());
+
+      writeFully(local);
+      position += 30 + name.length;
+      count++;
+    }
+
+    private void finish() throws IOException {
+      long centralOffset = position;
+      writeFully(ByteBuffer.wrap(central.toByteArray()));
+      ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+      end.putInt(END_SIG).putShort((short) 0).putShort((short) 0).putShort((short) count).putShort((short) count);
+      end.putInt(central.size()).putInt((int) centralOffset).putShort((short) 0).flip();
+      writeFully(end);
+      channel.force(false);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    private void close() throws IOException {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.spoutcraft.diff;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JBDiffTest {
+
+  // Around the small-bucket cutoff of qsufsort and the 64K boundary
+  private static final int[]  SIZES  = { 0, 1, 2, 3, 15, 16, 17, 255, 256, 257, 4096, 65535, 65536, 65537 };
+  private static final byte[] PERIOD = { (byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe, 0, 0, 0, 50, 1 };
+
+  @Test
+  public void suffixArrayMatchesQsufsort() {
+    for (byte[] buf : createInputs()) {
+      assertArrayEquals(describe(buf), QSufSort.sort(buf), SuffixSorter.sort(buf));
+    }
+  }
+
+  @Test
+  public void patchMatchesQsufsort() throws IOException {
+    List<byte[]> inputs = createInputs();
+    for (byte[] oldBuf : inputs) {
+      byte[] newBuf = modify(oldBuf, oldBuf.length);
+      assertArrayEquals(describe(oldBuf), JBDiff.bsdiff(oldBuf, QSufSort.sort(oldBuf), newBuf), JBDiff.bsdiff(oldBuf, newBuf));
+    }
+  }
+
+  @Test
+  public void patchRoundTrips() throws IOException {
+    List<byte[]> inputs = createInputs();
+    for (int i = 0; i < inputs.size(); i++) {
+      byte[] oldBuf = inputs.get(i);
+      roundTrip(oldBuf, modify(oldBuf, i));
+      // A different kind of data of the same size, mostly extra block. Long
+      // runs of one byte against each other are quadratic in bsdiff.
+      roundTrip(oldBuf, inputs.get(i - i % 3 + (i + 1) % 3));
+    }
+  }
+
+  private static void roundTrip(byte[] oldBuf, byte[] newBuf) throws IOException {
+    byte[] patch = JBDiff.bsdiff(oldBuf, newBuf);
+    assertArrayEquals(describe(oldBuf) + " to " + describe(newBuf), newBuf, JBPatch.bspatch(oldBuf, patch));
+  }
+
+  /**
+   * Random, periodic and constant buffers of every size in SIZES.
+   */
+  private static List<byte[]> createInputs() {
+    List<byte[]> inputs = new ArrayList<byte[]>();
+    for (int size : SIZES) {
+      byte[] random = new byte[size];
+      new Random(size).nextBytes(random);
+      inputs.add(random);
+
+      byte[] periodic = new byte[size];
+      for (int i = 0; i < size; i++) {
+        periodic[i] = PERIOD[i % PERIOD.length];
+      }
+      inputs.add(periodic);
+
+      byte[] constant = new byte[size];
+      Arrays.fill(constant, (byte) 0xff);
+      inputs.add(constant);
+    }
+    return inputs;
+  }
+
+  /**
+   * Changes a few bytes of buf and inserts and removes a run, the way a
+   * rebuilt class differs from the old one.
+   */
+  private static byte[] modify(byte[] buf, long seed) {
+    Random random = new Random(seed);
+    byte[] changed = buf.clone();
+    for (int i = 0; i < changed.length / 100 + 1 && changed.length > 0; i++) {
+      changed[random.nextInt(changed.length)] ^= 1 + random.nextInt(255);
+    }
+    int cut = changed.length == 0 ? 0 : random.nextInt(changed.length);
+    int removed = Math.min(changed.length - cut, random.nextInt(64));
+    byte[] inserted = new byte[random.nextInt(64)];
+    random.nextBytes(inserted);
+
+    byte[] result = new byte[changed.length - removed + inserted.length];
+    System.arraycopy(changed, 0, result, 0, cut);
+    System.arraycopy(inserted, 0, result, cut, inserted.length);
+    System.arraycopy(changed, cut + removed, result, cut + inserted.length, changed.length - cut - removed);
+    return result;
+  }
+
+  private static String describe(byte[] buf) {
+    return buf.length + " bytes starting " + (buf.length == 0 ? "-" : Integer.toHexString(buf[0] & 0xff));
+  }
+}
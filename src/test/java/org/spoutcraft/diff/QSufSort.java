@@ -0,0 +1,209 @@
+package org.spoutcraft.diff;
+
+/*
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+/**
+ * The qsufsort suffix sorting JBDiff used before {@link SuffixSorter}, kept
+ * unchanged so tests and benchmarks can compare against it.
+ */
+class QSufSort {
+
+  /**
+   * Sorts all suffixes of buf, in the same layout as {@link SuffixSorter#sort}.
+   */
+  static int[] sort(byte[] buf) {
+    int[] I = new int[buf.length + 1];
+    int[] V = new int[buf.length + 1];
+    qsufsort(I, V, buf);
+    return I;
+  }
+
+  private final static void split(int[] I, int[] V, int start, int len, int h) {
+
+    int i, j, k, x, tmp, jj, kk;
+
+    if (len < 16) {
+      for (k = start; k < start + len; k += j) {
+        j = 1;
+        x = V[I[k] + h];
+        for (i = 1; k + i < start + len; i++) {
+          if (V[I[k + i] + h] < x) {
+            x = V[I[k + i] + h];
+            j = 0;
+          }
+
+          if (V[I[k + i] + h] == x) {
+            tmp = I[k + j];
+            I[k + j] = I[k + i];
+            I[k + i] = tmp;
+            j++;
+          }
+
+        }
+
+        for (i = 0; i < j; i++)
+          V[I[k + i]] = k + j - 1;
+        if (j == 1)
+          I[k] = -1;
+      }
+
+      return;
+    }
+
+    x = V[I[start + len / 2] + h];
+    jj = 0;
+    kk = 0;
+    for (i = start; i < start + len; i++) {
+      if (V[I[i] + h] < x)
+        jj++;
+      if (V[I[i] + h] == x)
+        kk++;
+    }
+
+    jj += start;
+    kk += jj;
+
+    i = start;
+    j = 0;
+    k = 0;
+    while (i < jj) {
+      if (V[I[i] + h] < x) {
+        i++;
+      } else if (V[I[i] + h] == x) {
+        tmp = I[i];
+        I[i] = I[jj + j];
+        I[jj + j] = tmp;
+        j++;
+      } else {
+        tmp = I[i];
+        I[i] = I[kk + k];
+        I[kk + k] = tmp;
+        k++;
+      }
+
+    }
+
+    while (jj + j < kk) {
+      if (V[I[jj + j] + h] == x) {
+        j++;
+      } else {
+        tmp = I[jj + j];
+        I[jj + j] = I[kk + k];
+        I[kk + k] = tmp;
+        k++;
+      }
+
+    }
+
+    if (jj > start) {
+      split(I, V, start, jj - start, h);
+    }
+
+    for (i = 0; i < kk - jj; i++) {
+      V[I[jj + i]] = kk - 1;
+    }
+
+    if (jj == kk - 1) {
+      I[jj] = -1;
+    }
+
+    if (start + len > kk) {
+      split(I, V, kk, start + len - kk, h);
+    }
+
+  }
+
+  /**
+   * Fast suffix sporting. Larsson and Sadakane's qsufsort algorithm. See
+   * http://www.cs.lth.se/Research/Algorithms/Papers/jesper5.ps
+   * 
+   * @param I
+   * @param V
+   * @param oldBuf
+   */
+  private static void qsufsort(int[] I, int[] V, byte[] oldBuf) {
+
+    int oldsize = oldBuf.length;
+
+    int[] buckets = new int[256];
+    int i, h, len;
+
+    for (i = 0; i < 256; i++) {
+      buckets[i] = 0;
+    }
+
+    for (i = 0; i < oldsize; i++) {
+      buckets[oldBuf[i] & 0xff]++;
+    }
+
+    for (i = 1; i < 256; i++) {
+      buckets[i] += buckets[i - 1];
+    }
+
+    for (i = 255; i > 0; i--) {
+      buckets[i] = buckets[i - 1];
+    }
+
+    buckets[0] = 0;
+
+    for (i = 0; i < oldsize; i++) {
+      I[++buckets[oldBuf[i] & 0xff]] = i;
+    }
+
+    I[0] = oldsize;
+    for (i = 0; i < oldsize; i++) {
+      V[i] = buckets[oldBuf[i] & 0xff];
+    }
+    V[oldsize] = 0;
+
+    for (i = 1; i < 256; i++) {
+      if (buckets[i] == buckets[i - 1] + 1) {
+        I[buckets[i]] = -1;
+      }
+    }
+
+    I[0] = -1;
+
+    for (h = 1; I[0] != -(oldsize + 1); h += h) {
+      len = 0;
+      for (i = 0; i < oldsize + 1;) {
+        if (I[i] < 0) {
+          len -= I[i];
+          i -= I[i];
+        } else {
+          // if(len) I[i-len]=-len;
+          if (len != 0) {
+            I[i - len] = -len;
+          }
+          len = V[I[i]] + 1 - i;
+          split(I, V, i, len, h);
+          i += len;
+          len = 0;
+        }
+
+      }
+
+      if (len != 0) {
+        I[i - len] = -len;
+      }
+    }
+
+    for (i = 0; i < oldsize + 1; i++) {
+      I[V[i]] = i;
+    }
+  }
+}
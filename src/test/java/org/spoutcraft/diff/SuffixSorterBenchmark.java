@@ -0,0 +1,93 @@
+package org.spoutcraft.diff;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reports how fast {@link SuffixSorter} builds the suffix array of random,
+ * jar-like and constant data next to the qsufsort code it replaced, and how
+ * long a whole in-memory {@link JBDiff#bsdiff} takes with it. Not run as part
+ * of the tests.
+ *
+ * <p>
+ * Arguments: megabytes of old data (default 8)
+ * </p>
+ */
+public class SuffixSorterBenchmark {
+
+  private static final int      RUNS  = 3;
+  private static final String[] KINDS = { "random", "jar-like", "constant" };
+
+  public static void main(String[] args) throws IOException {
+    int size = (args.length > 0 ? Integer.parseInt(args[0]) : 8) * 1024 * 1024;
+    System.out.printf("%.1f MB of old data%n", size / 1048576.0);
+
+    for (int kind = 0; kind < KINDS.length; kind++) {
+      byte[] buf = createData(kind, size);
+
+      long bestQsufsort = Long.MAX_VALUE;
+      int[] expected = null;
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        expected = QSufSort.sort(buf);
+        bestQsufsort = Math.min(bestQsufsort, System.nanoTime() - start);
+      }
+
+      long bestSais = Long.MAX_VALUE;
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        int[] sorted = SuffixSorter.sort(buf);
+        bestSais = Math.min(bestSais, System.nanoTime() - start);
+        if (!Arrays.equals(expected, sorted)) {
+          throw new IOException("SA-IS and qsufsort disagree on " + KINDS[kind] + " data");
+        }
+      }
+      expected = null;
+
+      // Constant data is bsdiff's worst case, so the diff itself is skipped
+      String diff = "";
+      if (kind != 2) {
+        byte[] newBuf = buf.clone();
+        for (int pos = 0; pos < newBuf.length; pos += 4096) {
+          newBuf[pos]++;
+        }
+        long start = System.nanoTime();
+        JBDiff.bsdiff(buf, newBuf);
+        diff = String.format(", bsdiff %.2f s", (System.nanoTime() - start) / 1e9);
+      }
+
+      System.out.printf("%-9s qsufsort %6.2f s %6.1f MB/s, SA-IS %6.2f s %6.1f MB/s%s%n", KINDS[kind], bestQsufsort / 1e9, size / 1048576.0 / (bestQsufsort / 1e9), bestSais / 1e9, size / 1048576.0 / (bestSais / 1e9), diff);
+    }
+  }
+
+  /**
+   * Jar-like data repeats a few hundred class-sized blocks with small edits,
+   * which gives qsufsort the long common prefixes it is slow on.
+   */
+  private static byte[] createData(int kind, int size) {
+    byte[] buf = new byte[size];
+    Random random = new Random(42);
+    if (kind == 0) {
+      random.nextBytes(buf);
+    } else if (kind == 1) {
+      byte[][] blocks = new byte[300][];
+      for (int i = 0; i < blocks.length; i++) {
+        blocks[i] = new byte[512 + random.nextInt(8192)];
+        for (int pos = 0; pos < blocks[i].length; pos++) {
+          blocks[i][pos] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : "ABCDEFGHIJKLMNOP".charAt(pos / 8 % 16));
+        }
+      }
+      for (int pos = 0; pos < size;) {
+        byte[] block = blocks[random.nextInt(blocks.length)];
+        int len = Math.min(block.length, size - pos);
+        System.arraycopy(block, 0, buf, pos, len);
+        buf[pos + random.nextInt(len)] = (byte) random.nextInt(256);
+        pos += len;
+      }
+    } else {
+      Arrays.fill(buf, (byte) 0);
+    }
+    return buf;
+  }
+}
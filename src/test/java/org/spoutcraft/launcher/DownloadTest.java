@@ -0,0 +1,152 @@
+package org.spoutcraft.launcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spoutcraft.launcher.async.Download;
+
+public class DownloadTest {
+
+  private static final int SMALL = 200 * 1024;
+  // Large enough to be fetched in four segments
+  private static final int LARGE = 6 * 1024 * 1024;
+
+  private StandInMirror     mirror;
+  private File              dir;
+
+  @Before
+  public void setUp() throws IOException {
+    mirror = new StandInMirror(0);
+    dir = Files.createTempDirectory("download").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    mirror.stop();
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void resumesAfterDroppedConnection() throws IOException {
+    byte[] data = randomBytes(SMALL, 1);
+    mirror.put("a.zip", data);
+    mirror.drop(0, 50000);
+    Download download = newDownload("a.zip");
+
+    download.run();
+    assertFalse(download.isSuccess());
+    download.run();
+    assertTrue(download.isSuccess());
+    assertArrayEquals(data, Files.readAllBytes(download.getOutFile().toPath()));
+    assertEquals(DigestUtils.md5Hex(data), download.getMD5());
+
+    List<String> ranges = mirror.getRanges();
+    assertEquals(2, ranges.size());
+    assertEquals("", ranges.get(0));
+    assertTrue(getRangeStart(ranges.get(1)) > 0);
+  }
+
+  @Test
+  public void restartsWhenFileChangedOnServer() throws IOException {
+    mirror.put("b.zip", randomBytes(SMALL, 2));
+    mirror.drop(0, 50000);
+    Download download = newDownload("b.zip");
+    download.run();
+    assertFalse(download.isSuccess());
+
+    // The old ETag no longer matches, so If-Range gets the whole new file
+    byte[] changed = randomBytes(SMALL, 3);
+    mirror.put("b.zip", changed);
+    download.run();
+    assertTrue(download.isSuccess());
+    assertEquals(200, download.getResponseCode());
+    assertArrayEquals(changed, Files.readAllBytes(download.getOutFile().toPath()));
+    assertEquals(DigestUtils.md5Hex(changed), download.getMD5());
+  }
+
+  @Test
+  public void restartsWhenRangeNotSatisfiable() throws IOException {
+    byte[] data = randomBytes(SMALL, 4);
+    mirror.put("c.zip", data);
+    mirror.drop(0, 50000);
+    Download download = newDownload("c.zip");
+    download.run();
+    assertFalse(download.isSuccess());
+
+    mirror.rejectRanges(true);
+    download.run();
+    assertTrue(download.isSuccess());
+    assertArrayEquals(data, Files.readAllBytes(download.getOutFile().toPath()));
+    assertEquals(DigestUtils.md5Hex(data), download.getMD5());
+  }
+
+  @Test
+  public void retriesCutSegment() throws IOException {
+    byte[] data = randomBytes(LARGE, 5);
+    long segmentSize = (LARGE + 3) / 4;
+    long cutStart = 2 * segmentSize;
+    mirror.put("d.zip", data);
+    mirror.drop(cutStart, 100000);
+    Download download = newDownload("d.zip");
+
+    download.run();
+    assertTrue(download.isSuccess());
+    assertArrayEquals(data, Files.readAllBytes(download.getOutFile().toPath()));
+    assertEquals(DigestUtils.md5Hex(data), download.getMD5());
+
+    // The cut segment is fetched again from where it stopped
+    boolean retried = false;
+    for (String range : mirror.getRanges()) {
+      long start = getRangeStart(range);
+      retried |= start > cutStart && start < cutStart + segmentSize;
+    }
+    assertTrue(retried);
+  }
+
+  @Test
+  public void teeMatchesFileAcrossResume() throws IOException {
+    byte[] data = randomBytes(SMALL, 6);
+    mirror.put("e.zip", data);
+    mirror.drop(0, 50000);
+    ByteArrayOutputStream tee = new ByteArrayOutputStream();
+    Download download = newDownload("e.zip");
+    download.setTee(tee);
+
+    download.run();
+    assertFalse(download.isSuccess());
+    download.run();
+    assertTrue(download.isSuccess());
+    assertArrayEquals(data, Files.readAllBytes(download.getOutFile().toPath()));
+    assertArrayEquals(data, tee.toByteArray());
+  }
+
+  private Download newDownload(String path) throws IOException {
+    return new Download(mirror.getName() + "/" + path, new File(dir, path).getPath());
+  }
+
+  private static long getRangeStart(String range) {
+    if (range.isEmpty()) {
+      return 0;
+    }
+    return Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+  }
+
+  private static byte[] randomBytes(int size, long seed) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,89 @@
+package org.spoutcraft.launcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spoutcraft.launcher.async.Download;
+
+public class DownloadUtilsTest {
+
+  private static final byte[] DATA = "stand-in mod archive".getBytes(StandardCharsets.UTF_8);
+
+  private StandInMirror       preferred;
+  private StandInMirror       other;
+  private File                dir;
+
+  @BeforeClass
+  public static void setUpLauncher() {
+    MicrosoftAuth.setOptions(new Options());
+    GameUpdater.tempDir.mkdirs();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    preferred = new StandInMirror(0);
+    other = new StandInMirror(0);
+    dir = Files.createTempDirectory("mirrors").toFile();
+    File yml = new File(dir, "mirrors.yml");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(yml), StandardCharsets.UTF_8);
+    try {
+      writer.write("mirrors:\n  " + preferred.getName() + ": 100\n  " + other.getName() + ": 1\n");
+    } finally {
+      writer.close();
+    }
+    MirrorUtils.useMirrorsYML(yml);
+  }
+
+  @After
+  public void tearDown() {
+    preferred.stop();
+    other.stop();
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void missingFileMovesToNextMirror() throws IOException {
+    other.put("mods/a.zip", DATA);
+    String url = MirrorUtils.getMirrorUrl("mods/a.zip", null);
+    assertTrue(url.startsWith(preferred.getName()));
+
+    for (int i = 0; i < 4; i++) {
+      File output = new File(dir, "a" + i + ".zip");
+      Download download = DownloadUtils.downloadFile(url, output.getPath(), null, DigestUtils.md5Hex(DATA), null);
+      assertTrue(download.isSuccess());
+      assertArrayEquals(DATA, Files.readAllBytes(output.toPath()));
+    }
+    // A missing file is not held against the mirror
+    assertEquals(preferred.getName(), MirrorRegistry.chooseMirror(MirrorUtils.getMirrors()));
+  }
+
+  @Test
+  public void missingEverywhereUsesFallback() throws IOException {
+    StandInMirror fallback = new StandInMirror(0);
+    try {
+      fallback.put("b.zip", DATA);
+      String url = MirrorUtils.getMirrorUrl("mods/b.zip", fallback.getName() + "/b.zip");
+      File output = new File(dir, "b.zip");
+      Download download = DownloadUtils.downloadFile(url, output.getPath(), null, DigestUtils.md5Hex(DATA), null);
+      assertTrue(download.isSuccess());
+      assertEquals(fallback.getName() + "/b.zip", download.getUrl());
+      assertArrayEquals(DATA, Files.readAllBytes(output.toPath()));
+    } finally {
+      fallback.stop();
+    }
+  }
+}
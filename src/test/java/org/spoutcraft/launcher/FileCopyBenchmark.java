@@ -0,0 +1,103 @@
+package org.spoutcraft.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Reports the time per copy of the old 4K buffer copy, {@link FileUtils#copy}
+ * and {@link FileUtils#linkOrCopy} for a range of file sizes. Not run as part
+ * of the tests. Files are small enough to stay in the page cache, so this
+ * measures the copy path rather than the disk.
+ */
+public class FileCopyBenchmark {
+
+  private static final int[] SIZES       = { 4 * 1024, 256 * 1024, 4 * 1024 * 1024, 64 * 1024 * 1024 };
+  // Bytes copied per size and method, at least MIN_COPIES times
+  private static final long  BYTES_PER   = 512L * 1024 * 1024;
+  private static final int   MIN_COPIES  = 5;
+  private static final int   MAX_COPIES  = 2000;
+
+  public static void main(String[] args) throws IOException {
+    File dir = Files.createTempDirectory("filecopy").toFile();
+    try {
+      System.out.printf("%10s %22s %22s %22s%n", "size", "4K buffer", "FileUtils.copy", "linkOrCopy");
+      for (int size : SIZES) {
+        File source = new File(dir, "source_" + size);
+        createFile(source, size);
+        File target = new File(dir, "target");
+        int copies = (int) Math.max(MIN_COPIES, Math.min(MAX_COPIES, BYTES_PER / size));
+        StringBuilder row = new StringBuilder(String.format("%10s", formatSize(size)));
+        for (int method = 0; method < 3; method++) {
+          // One copy first to warm up the JIT and page cache
+          copy(method, source, target);
+          long start = System.nanoTime();
+          for (int i = 0; i < copies; i++) {
+            copy(method, source, target);
+          }
+          double seconds = (System.nanoTime() - start) / 1e9;
+          row.append(String.format(" %9.3f ms %7.0f MB/s", seconds * 1000 / copies, (double) size * copies / 1048576.0 / seconds));
+          if (target.length() != size) {
+            throw new IOException("Copy has " + target.length() + " of " + size + " bytes");
+          }
+          target.delete();
+        }
+        System.out.println(row);
+        source.delete();
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static void copy(int method, File source, File target) throws IOException {
+    if (method == 0) {
+      bufferCopy(source, target);
+    } else if (method == 1) {
+      FileUtils.copy(source, target);
+    } else {
+      FileUtils.linkOrCopy(source, target);
+    }
+  }
+
+  /**
+   * The copy GameUpdater.copy used to do.
+   */
+  private static void bufferCopy(File source, File target) throws IOException {
+    InputStream in = new FileInputStream(source);
+    try {
+      OutputStream out = new FileOutputStream(target);
+      try {
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void createFile(File file, int size) throws IOException {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String formatSize(int size) {
+    return size >= 1024 * 1024 ? size / (1024 * 1024) + "M" : size / 1024 + "K";
+  }
+}
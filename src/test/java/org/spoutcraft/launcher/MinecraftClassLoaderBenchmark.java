@@ -0,0 +1,271 @@
+package org.spoutcraft.launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Reports how many classes per second {@link MinecraftClassLoader} loads from
+ * a set of synthetic jars laid out like a modpack launch, next to the loader
+ * it replaced and a plain {@link URLClassLoader} over the same jars. Not run
+ * as part of the tests.
+ *
+ * <p>
+ * Arguments: number of classes (default 5000), loading threads (default 1)
+ * </p>
+ */
+public class MinecraftClassLoaderBenchmark {
+
+  private static final int      RUNS = 3;
+  // Same order LauncherController hands the jars to the loader
+  private static final String[] JARS = { "modpack.jar", "minecraft.jar", "jinput.jar", "lwjgl.jar", "lwjgl_util.jar", "custom.jar" };
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+    File dir = Files.createTempDirectory("classloader").toFile();
+    try {
+      File[] files = new File[JARS.length];
+      URL[] urls = new URL[JARS.length];
+      for (int i = 0; i < JARS.length; i++) {
+        files[i] = new File(dir, JARS[i]);
+        urls[i] = files[i].toURI().toURL();
+      }
+      List<String> names = createJars(files, count);
+      System.out.printf("%d classes in %d jars, %d thread(s), %d available cores%n", count, files.length, threads, Runtime.getRuntime().availableProcessors());
+
+      for (int loader = 0; loader < 3; loader++) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+          URLClassLoader classLoader = newLoader(loader, urls, files);
+          try {
+            long start = System.nanoTime();
+            int loaded = loadAll(classLoader, names, threads);
+            best = Math.min(best, System.nanoTime() - start);
+            if (loaded != count) {
+              throw new IOException("Loaded " + loaded + " of " + count + " classes");
+            }
+          } finally {
+            classLoader.close();
+          }
+        }
+        double seconds = best / 1e9;
+        System.out.printf("%-22s %7.3f s, %8.0f classes/s%n", getName(loader), seconds, count / seconds);
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static String getName(int loader) {
+    return loader == 0 ? "old loader" : loader == 1 ? "MinecraftClassLoader" : "URLClassLoader";
+  }
+
+  private static URLClassLoader newLoader(int loader, URL[] urls, File[] files) {
+    ClassLoader parent = ClassLoader.getSystemClassLoader();
+    File modpack = files[0];
+    File custom = files[files.length - 1];
+    if (loader == 0) {
+      return new OldClassLoader(urls, parent, modpack, custom, files);
+    } else if (loader == 1) {
+      return new MinecraftClassLoader(urls, parent, modpack, custom, files);
+    }
+    return new URLClassLoader(urls, parent);
+  }
+
+  private static int loadAll(final ClassLoader classLoader, final List<String> names, int threads) throws Exception {
+    final AtomicInteger loaded = new AtomicInteger();
+    if (threads <= 1) {
+      for (String name : names) {
+        if (classLoader.loadClass(name).getClassLoader() == classLoader) {
+          loaded.incrementAndGet();
+        }
+      }
+      return loaded.get();
+    }
+
+    // Each thread takes every threads-th class so they all hit every jar
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+        final int first = t;
+        final int step = threads;
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws ClassNotFoundException {
+            for (int i = first; i < names.size(); i += step) {
+              if (classLoader.loadClass(names.get(i)).getClassLoader() == classLoader) {
+                loaded.incrementAndGet();
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    return loaded.get();
+  }
+
+  /**
+   * Spreads count empty classes of 0.5-4K over the jars, in a few hundred
+   * packages, and returns their names in a shuffled but fixed load order.
+   */
+  private static List<String> createJars(File[] files, int count) throws IOException {
+    Random random = new Random(42);
+    List<String> names = new ArrayList<String>(count);
+    JarOutputStream[] outs = new JarOutputStream[files.length];
+    try {
+      for (int i = 0; i < files.length; i++) {
+        outs[i] = new JarOutputStream(new FileOutputStream(files[i]));
+      }
+      for (int i = 0; i < count; i++) {
+        String name = "net/minecraft/pkg" + (i % 200) + "/Class" + i;
+        // Most classes live in minecraft.jar, as they do in a real launch
+        int jar = random.nextInt(2) == 0 ? 1 : random.nextInt(files.length);
+        outs[jar].putNextEntry(new JarEntry(name + ".class"));
+        outs[jar].write(createClass(name, 512 + random.nextInt(3584)));
+        outs[jar].closeEntry();
+        names.add(name.replace('/', '.'));
+      }
+    } finally {
+      for (JarOutputStream out : outs) {
+        if (out != null) {
+          out.close();
+        }
+      }
+    }
+    Collections.shuffle(names, random);
+    return names;
+  }
+
+  /**
+   * A class file for an empty public class, padded with an unused constant so
+   * the loaders read realistic amounts of data.
+   */
+  private static byte[] createClass(String name, int padding) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(padding + 128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(50);
+    out.writeShort(6);
+    out.writeByte(1);
+    out.writeUTF(name);
+    out.writeByte(7);
+    out.writeShort(1);
+    out.writeByte(1);
+    out.writeUTF("java/lang/Object");
+    out.writeByte(7);
+    out.writeShort(3);
+    out.writeByte(1);
+    StringBuilder filler = new StringBuilder(padding);
+    for (int i = 0; i < padding; i++) {
+      filler.append((char) ('a' + (i * 7 + name.length()) % 26));
+    }
+    out.writeUTF(filler.toString());
+    out.writeShort(0x0021);
+    out.writeShort(2);
+    out.writeShort(4);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * The loader MinecraftClassLoader used to be: every lookup opens each jar in
+   * turn and reads the class a byte at a time.
+   */
+  private static class OldClassLoader extends URLClassLoader {
+    private final HashMap<String, Class<?>> loadedClasses = new HashMap<String, Class<?>>(1000);
+    private final File                      spoutcraft;
+    private final File                      custom;
+    private final File[]                    libraries;
+
+    private OldClassLoader(URL[] urls, ClassLoader parent, File spoutcraft, File custom, File[] libraries) {
+      super(urls, parent);
+      this.spoutcraft = spoutcraft;
+      this.custom = custom;
+      this.libraries = libraries;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Class<?> result = loadedClasses.get(name);
+      if (result != null) {
+        return result;
+      }
+      result = findClassInjar(name, spoutcraft);
+      if (result != null) {
+        return result;
+      }
+      result = findClassInjar(name, custom);
+      if (result != null) {
+        return result;
+      }
+      for (File file : libraries) {
+        result = findClassInjar(name, file);
+        if (result != null) {
+          return result;
+        }
+      }
+      return super.findClass(name);
+    }
+
+    private Class<?> findClassInjar(String name, File file) {
+      try {
+        JarFile jar = new JarFile(file);
+        JarEntry entry = jar.getJarEntry(name.replace(".", "/") + ".class");
+        if (entry != null) {
+          InputStream is = jar.getInputStream(entry);
+          ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+          int next = is.read();
+          while (-1 != next) {
+            byteStream.write(next);
+            next = is.read();
+          }
+          byte classByte[] = byteStream.toByteArray();
+          Class<?> result = defineClass(name, classByte, 0, classByte.length, new CodeSource(file.toURI().toURL(), (CodeSigner[]) null));
+          loadedClasses.put(name, result);
+          // The original left these open, closing them keeps the benchmark
+          // within the file descriptor limit
+          jar.close();
+          return result;
+        }
+        jar.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package org.spoutcraft.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MirrorRegistryTest {
+
+  @Test
+  public void ranksReachableMirrorsByLatency() throws Exception {
+    StandInMirror slow = new StandInMirror(300);
+    StandInMirror fast = new StandInMirror(0);
+    StandInMirror down = new StandInMirror(0);
+    down.stop();
+    try {
+      Map<String, Integer> mirrors = new LinkedHashMap<String, Integer>();
+      mirrors.put(slow.getName(), 1);
+      mirrors.put(fast.getName(), 1);
+      mirrors.put(down.getName(), 1);
+      assertEquals(Arrays.asList(fast.getName(), slow.getName()), MirrorRegistry.rankMirrors(mirrors));
+      assertEquals(fast.getName(), MirrorRegistry.chooseMirror(mirrors));
+    } finally {
+      slow.stop();
+      fast.stop();
+    }
+  }
+
+  @Test
+  public void skipsMirrorAfterRepeatedFailures() throws Exception {
+    StandInMirror flaky = new StandInMirror(0);
+    StandInMirror other = new StandInMirror(0);
+    try {
+      Map<String, Integer> mirrors = new LinkedHashMap<String, Integer>();
+      mirrors.put(flaky.getName(), 100);
+      mirrors.put(other.getName(), 1);
+      assertEquals(flaky.getName(), MirrorRegistry.chooseMirror(mirrors));
+      for (int i = 0; i < 3; i++) {
+        MirrorRegistry.recordFailure(flaky.getName() + "/file.zip");
+      }
+      assertFalse(MirrorRegistry.rankMirrors(mirrors).contains(flaky.getName()));
+      assertTrue(MirrorRegistry.rankMirrors(mirrors).contains(other.getName()));
+    } finally {
+      flaky.stop();
+      other.stop();
+    }
+  }
+
+  @Test
+  public void ranksFailedMirrorLastOnceItsBreakerCloses() throws Exception {
+    StandInMirror slow = new StandInMirror(300);
+    StandInMirror down = new StandInMirror(0);
+    down.stop();
+    try {
+      Map<String, Integer> mirrors = new LinkedHashMap<String, Integer>();
+      mirrors.put(down.getName(), 1);
+      mirrors.put(slow.getName(), 1);
+      assertEquals(Arrays.asList(slow.getName()), MirrorRegistry.rankMirrors(mirrors));
+      long later = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+      assertEquals(Arrays.asList(slow.getName(), down.getName()), MirrorRegistry.rankMirrors(mirrors, later));
+    } finally {
+      slow.stop();
+    }
+  }
+}
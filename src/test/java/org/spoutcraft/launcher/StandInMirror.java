@@ -0,0 +1,143 @@
+package org.spoutcraft.launcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server standing in for a mirror. It answers probes, serves the
+ * files put on it and answers 404 for anything else. Files are served with an
+ * ETag and honour Range and If-Range, and a response can be made to drop its
+ * connection part way through the body.
+ */
+class StandInMirror {
+
+  private final HttpServer          server;
+  private final Map<String, byte[]> files  = new ConcurrentHashMap<String, byte[]>();
+  // Range start of a request mapped to the bytes sent before dropping it
+  private final Map<Long, Long>     drops  = new ConcurrentHashMap<Long, Long>();
+  private final List<String>        ranges = new CopyOnWriteArrayList<String>();
+  private final long                delay;
+  private volatile boolean          rejectRanges;
+
+  StandInMirror(long delay) throws IOException {
+    this.delay = delay;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    server.start();
+  }
+
+  void put(String path, byte[] data) {
+    files.put("/" + path, data);
+  }
+
+  /**
+   * Drops the connection of the next request for a file whose range starts at
+   * from, after sending bytes of the body. A request without a range starts
+   * at 0.
+   */
+  void drop(long from, long bytes) {
+    drops.put(from, bytes);
+  }
+
+  /**
+   * Answers every request with a Range with 416 Range Not Satisfiable.
+   */
+  void rejectRanges(boolean rejectRanges) {
+    this.rejectRanges = rejectRanges;
+  }
+
+  /**
+   * @return the Range header of every request for a file so far, "" for
+   *         requests without one
+   */
+  List<String> getRanges() {
+    return ranges;
+  }
+
+  /**
+   * @return the mirror as it is listed in mirrors.yml
+   */
+  String getName() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    byte[] data = files.get(exchange.getRequestURI().getPath());
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(200, -1);
+    } else if (data == null) {
+      exchange.sendResponseHeaders(404, -1);
+    } else {
+      serveFile(exchange, data);
+    }
+    exchange.close();
+  }
+
+  private void serveFile(HttpExchange exchange, byte[] data) throws IOException {
+    String etag = "\"" + Integer.toHexString(Arrays.hashCode(data)) + "\"";
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+    ranges.add(range == null ? "" : range);
+    exchange.getResponseHeaders().set("ETag", etag);
+    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+    int status = 200;
+    long from = 0;
+    long to = data.length - 1;
+    if (range != null && rejectRanges) {
+      exchange.sendResponseHeaders(416, -1);
+      return;
+    }
+    // A changed file is sent whole, as If-Range asks
+    if (range != null && (ifRange == null || ifRange.equals(etag))) {
+      String[] split = range.substring("bytes=".length()).split("-", -1);
+      from = Long.parseLong(split[0]);
+      if (!split[1].isEmpty()) {
+        to = Math.min(to, Long.parseLong(split[1]));
+      }
+      if (from > to) {
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      status = 206;
+      exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + data.length);
+    }
+
+    long length = to - from + 1;
+    Long drop = drops.remove(from);
+    exchange.sendResponseHeaders(status, length);
+    OutputStream out = exchange.getResponseBody();
+    if (drop == null) {
+      out.write(data, (int) from, (int) length);
+      out.close();
+      return;
+    }
+    out.write(data, (int) from, (int) Math.min(drop, length));
+    out.flush();
+    // The server closes the connection of a handler that fails
+    throw new IOException("Dropped connection");
+  }
+}
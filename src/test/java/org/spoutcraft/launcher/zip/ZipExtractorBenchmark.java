@@ -0,0 +1,107 @@
+package org.spoutcraft.launcher.zip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.lingala.zip4j.exception.ZipException;
+
+import org.spoutcraft.launcher.FileUtils;
+
+/**
+ * Reports how fast {@link ZipExtractor} extracts a synthetic 5000 entry mod
+ * zip with 1, 2, 4 and all available threads, next to zip4j which it
+ * replaced. Not run as part of the tests.
+ *
+ * <p>
+ * Arguments: number of entries (default 5000)
+ * </p>
+ */
+public class ZipExtractorBenchmark {
+
+  private static final int RUNS = 3;
+
+  public static void main(String[] args) throws IOException, ZipException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    File dir = Files.createTempDirectory("zipextractor").toFile();
+    try {
+      File zip = new File(dir, "mod.zip");
+      long bytes = createZip(zip, count);
+      System.out.printf("%d entries, %.1f MB uncompressed, %.1f MB zip, %d available cores%n", count, bytes / 1048576.0, zip.length() / 1048576.0, cores);
+
+      File destination = new File(dir, "out");
+      long best = Long.MAX_VALUE;
+      for (int run = 0; run < RUNS; run++) {
+        FileUtils.deleteDirectory(destination);
+        long start = System.nanoTime();
+        new net.lingala.zip4j.core.ZipFile(zip).extractAll(destination.getPath());
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      report("zip4j", best, bytes, count);
+
+      TreeSet<Integer> counts = new TreeSet<Integer>();
+      counts.add(1);
+      counts.add(2);
+      counts.add(4);
+      counts.add(cores);
+      for (int threads : counts) {
+        ZipExtractor.setThreads(threads);
+        best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+          FileUtils.deleteDirectory(destination);
+          long start = System.nanoTime();
+          int written = ZipExtractor.extract(zip, destination, null);
+          best = Math.min(best, System.nanoTime() - start);
+          if (written != count) {
+            throw new IOException("Extracted " + written + " of " + count + " entries");
+          }
+        }
+        report(threads + " thread(s)", best, bytes, count);
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static void report(String name, long nanos, long bytes, int count) {
+    double seconds = nanos / 1e9;
+    System.out.printf("%-12s %6.2f s, %7.1f MB/s, %6.0f entries/s%n", name, seconds, bytes / 1048576.0 / seconds, count / seconds);
+  }
+
+  /**
+   * Writes count class-like entries of 1-16K in a few hundred packages, plus
+   * a META-INF the extractor skips.
+   *
+   * @return uncompressed size of the entries outside META-INF
+   */
+  private static long createZip(File zip, int count) throws IOException {
+    Random random = new Random(42);
+    long bytes = 0;
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+      out.write("Manifest-Version: 1.0\r\n".getBytes("US-ASCII"));
+      out.closeEntry();
+      for (int i = 0; i < count; i++) {
+        byte[] data = new byte[1024 + random.nextInt(15 * 1024)];
+        for (int pos = 0; pos < data.length; pos++) {
+          data[pos] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : "ABCDEFGHIJKLMNOP".charAt(pos / 8 % 16));
+        }
+        out.putNextEntry(new ZipEntry("net/minecraft/mod" + (i % 250) + "/Class" + i + ".class"));
+        out.write(data);
+        out.closeEntry();
+        bytes += data.length;
+      }
+    } finally {
+      out.close();
+    }
+    return bytes;
+  }
+}
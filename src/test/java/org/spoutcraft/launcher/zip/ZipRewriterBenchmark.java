@@ -0,0 +1,134 @@
+package org.spoutcraft.launcher.zip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.spoutcraft.launcher.FileUtils;
+
+/**
+ * Reports how fast {@link ZipRewriter} compresses a backup of synthetic save
+ * data with 1, 2, 4 and all available threads. Not run as part of the tests.
+ *
+ * <p>
+ * Arguments: deflate level (default 6), megabytes of data (default 64)
+ * </p>
+ */
+public class ZipRewriterBenchmark {
+
+  private static final int RUNS = 3;
+
+  public static void main(String[] args) throws IOException {
+    int level = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+    int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    File dir = Files.createTempDirectory("ziprewriter").toFile();
+    try {
+      Map<String, File> additions = createData(new File(dir, "data"), megabytes * 1024L * 1024L);
+      long bytes = 0;
+      for (File file : additions.values()) {
+        bytes += file.length();
+      }
+      System.out.printf("%d files, %.1f MB, level %d, %d available cores%n", additions.size(), bytes / 1048576.0, level, cores);
+
+      TreeSet<Integer> counts = new TreeSet<Integer>();
+      counts.add(1);
+      counts.add(2);
+      counts.add(4);
+      counts.add(cores);
+      File zip = new File(dir, "backup.zip");
+      for (int threads : counts) {
+        ZipRewriter.setThreads(threads);
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+          zip.delete();
+          long start = System.nanoTime();
+          ZipRewriter.merge(zip, additions, level, null, "Benchmark");
+          best = Math.min(best, System.nanoTime() - start);
+        }
+        verify(zip, additions);
+        System.out.printf("%2d thread(s): %7.1f MB/s, %.1f MB zip%n", threads, bytes / 1048576.0 / (best / 1e9), zip.length() / 1048576.0);
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  /**
+   * Mostly small, compressible region and NBT-like files with a few large
+   * ones, so both whole-file and block compression are measured.
+   */
+  private static Map<String, File> createData(File dir, long total) throws IOException {
+    Map<String, File> files = new LinkedHashMap<String, File>();
+    Random random = new Random(42);
+    long written = 0;
+    for (int i = 0; written < total; i++) {
+      int size = i % 16 == 0 ? 4 * 1024 * 1024 : 8 * 1024 + random.nextInt(256 * 1024);
+      String name = "world/region/r." + i + ".mca";
+      File file = new File(dir, name);
+      file.getParentFile().mkdirs();
+      OutputStream out = new FileOutputStream(file);
+      try {
+        byte[] data = new byte[size];
+        for (int pos = 0; pos < size; pos++) {
+          // Runs of repeated values with some noise, roughly 3:1 compressible
+          data[pos] = (byte) (random.nextInt(8) == 0 ? random.nextInt(256) : pos / 64 % 32);
+        }
+        out.write(data);
+      } finally {
+        out.close();
+      }
+      files.put(name, file);
+      written += size;
+    }
+    return files;
+  }
+
+  private static void verify(File zip, Map<String, File> additions) throws IOException {
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      int count = 0;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        File file = additions.get(entry.getName());
+        if (file == null || getCrc(zipFile.getInputStream(entry)) != getCrc(new FileInputStream(file))) {
+          throw new IOException("Benchmark zip does not match " + entry.getName());
+        }
+        count++;
+      }
+      if (count != additions.size()) {
+        throw new IOException("Benchmark zip has " + count + " of " + additions.size() + " files");
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private static long getCrc(InputStream in) throws IOException {
+    CRC32 crc = new CRC32();
+    try {
+      byte[] buf = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buf)) > 0) {
+        crc.update(buf, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return crc.getValue();
+  }
+}